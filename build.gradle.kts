@@ -103,6 +103,8 @@ tasks.jar {
 
 tasks.test {
     useJUnitPlatform()
+    dependsOn(launcher.classesTaskName)
+    systemProperty("kotlin_script.launcher.classpath", launcher.output.classesDirs.asPath)
 }
 
 tasks.register<JavaExec>("updateMainSources") {
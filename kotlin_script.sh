@@ -26,19 +26,63 @@ fi
 
 export KOTLIN_SCRIPT_FLAGS="$KOTLIN_SCRIPT_FLAGS"
 
+set -- -jar "$kotlin_script_sh" "$script_file" "$@"
+
+cds_dump=
+if [ -n "$KOTLIN_SCRIPT_CDS" ] && [ -r "$script_file" ]; then
+  # per-script class data sharing archive, keyed by the script path like the
+  # launcher stat cache and validated by the launcher
+  case "$script_file" in
+  /*) cds_file="$script_file" ;;
+  *)  cds_file="$PWD/$script_file" ;;
+  esac
+  case "$cds_file" in
+  */../*|*/..)
+    cds_file=
+    ;;
+  *)
+    cds_file="${M2_LOCAL_REPO:-"$HOME"/.m2/repository}/org/cikit/kotlin_script_cache/$v/cds$cds_file.jsa"
+    ;;
+  esac
+  if [ -z "$cds_file" ]; then
+    :
+  elif [ -r "$cds_file" ]; then
+    set -- -XX:+IgnoreUnrecognizedVMOptions "-XX:SharedArchiveFile=$cds_file" \
+      -Dkotlin_script.cds="$cds_file" "$@"
+  else
+    # dumped to a private path and installed by rename after exit
+    cds_dump="$cds_file.$$"
+    set -- -XX:+IgnoreUnrecognizedVMOptions "-XX:ArchiveClassesAtExit=$cds_dump" \
+      -Dkotlin_script.cds="$cds_file" -Dkotlin_script.cds.dump="$cds_dump" "$@"
+  fi
+fi
+
 case "$kotlin_script_sh" in
 "${M2_LOCAL_REPO:-"$HOME"/.m2/repository}"/*)
-  # called directly
-  exec ${java_cmd:-java} -jar "$kotlin_script_sh" "$script_file" "$@"
-  exit 2
+  if [ -z "$cds_dump" ]; then
+    # called directly
+    exec ${java_cmd:-java} "$@"
+    exit 2
+  fi
+  ;;
+*)
+  if ! [ -e "$kotlin_script_sh" ]; then
+    echo "internal error: '$kotlin_script_sh': no such file" >&2
+    exit 2
+  fi
+  # running with temporary kotlin_script_sh
+  trap 'rm -f "$kotlin_script_sh"' EXIT
+  ;;
 esac
 
-if ! [ -e "$kotlin_script_sh" ]; then
-  echo "internal error: '$kotlin_script_sh': no such file" >&2
-  exit 2
+${java_cmd:-java} "$@"
+rc="$?"
+if [ -n "$cds_dump" ]; then
+  # the launcher writes the key unless the archive is unusable; an archive
+  # without key is discarded, so the key is installed first
+  if [ -r "$cds_dump.key" ] && [ -r "$cds_dump" ]; then
+    mv -f "$cds_dump.key" "$cds_file.key" && mv -f "$cds_dump" "$cds_file"
+  fi
+  rm -f "$cds_dump" "$cds_dump.key"
 fi
-
-# running with temporary kotlin_script_sh
-trap 'rm -f "$kotlin_script_sh"' EXIT
-${java_cmd:-java} -jar "$kotlin_script_sh" "$script_file" "$@"
-exit "$?"
+exit "$rc"
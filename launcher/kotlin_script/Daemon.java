@@ -0,0 +1,880 @@
+package kotlin_script;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Permission;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in warm JVM (one per user, kotlin_script version and java home)
+ * executing scripts on behalf of clients.
+ *
+ * The client is the launcher itself, so the startup of its jvm is still
+ * paid: it forwards its flags, working directory, environment, argv and
+ * stdio over a loopback connection authenticated by a token stored in a
+ * file only readable by the user, and exits with the exit code of the
+ * script. Stdin is only read by the client when the script asks for it,
+ * and no more than it asks for. Each script runs in its own class loader,
+ * built by the same code path as a direct launch, and sees its own
+ * {@code kotlin_script.name}, {@code kotlin_script.flags} and
+ * {@code user.dir} system properties and its own {@code System.getenv()}.
+ * Child processes inherit the environment of the daemon. As relative paths
+ * resolve against the working directory of the daemon, sessions started in
+ * another directory are declined and run by the client. When the client
+ * goes away, the threads of its session are interrupted.
+ */
+final class Daemon {
+
+    private static final byte FRAME_STDIN = 0;
+    private static final byte FRAME_STDIN_EOF = 1;
+    private static final byte FRAME_STDOUT = 2;
+    private static final byte FRAME_STDERR = 3;
+    private static final byte FRAME_EXIT = 4;
+    private static final byte FRAME_STDIN_READ = 5;
+    private static final byte FRAME_DECLINED = 6;
+
+    private static final int STDIN_BUFFER_SIZE = 65536;
+
+    private static final long SPAWN_TIMEOUT_MS = 20_000L;
+    private static final long DEFAULT_IDLE_TIMEOUT_S = 600L;
+
+    private final Path dir;
+    private final String id;
+    private final Path portFile;
+    private final boolean trace;
+
+    Daemon(Path dir, String kotlinScriptVersion, boolean trace) throws NoSuchAlgorithmException {
+        this.dir = dir;
+        this.trace = trace;
+        final MessageDigest md = MessageDigest.getInstance("SHA-256");
+        final StringBuilder sb = new StringBuilder();
+        sb.append(System.getProperty("user.name")).append('\n');
+        sb.append(kotlinScriptVersion).append('\n');
+        sb.append(System.getProperty("java.home")).append('\n');
+        md.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        final StringBuilder hex = new StringBuilder();
+        final byte[] digest = md.digest();
+        for (int i = 0; i < 16; i++) {
+            hex.append(String.format("%02x", digest[i] & 0xFF));
+        }
+        this.id = hex.toString();
+        this.portFile = dir.resolve(id + ".port");
+    }
+
+    private Daemon(Path dir, String id) {
+        this.dir = dir;
+        this.id = id;
+        this.portFile = dir.resolve(id + ".port");
+        this.trace = false;
+    }
+
+    static boolean isSupported(String javaVersion) {
+        // scripts calling System.exit are trapped with a security manager
+        try {
+            return javaVersion.startsWith("1.") || Integer.parseInt(javaVersion) < 24;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // ---- client ----
+
+    /**
+     * Runs {@code args} in the daemon, starting it if necessary.
+     *
+     * @return the exit code, or {@code null} when no daemon is available or
+     * it declined the session and the script has to be executed by this
+     * process
+     */
+    Integer runClient(Path launcherJar, String javaVersion, String flags, String[] args) throws IOException {
+        Socket socket = connect();
+        if (socket == null) {
+            socket = spawnAndConnect(launcherJar, javaVersion);
+            if (socket == null) {
+                return null;
+            }
+        }
+        try {
+            return session(socket, flags, args);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private Socket connect() {
+        final String[] portAndToken;
+        try {
+            portAndToken = new String(Files.readAllBytes(portFile), StandardCharsets.US_ASCII).trim().split(" ");
+        } catch (IOException e) {
+            return null;
+        }
+        if (portAndToken.length != 2) {
+            return null;
+        }
+        try {
+            final Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(portAndToken[0]));
+            try {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeUTF(portAndToken[1]);
+                out.writeUTF(id);
+                out.flush();
+                if (socket.getInputStream().read() == 1) {
+                    return socket;
+                }
+            } catch (IOException e) {
+                // fall through
+            }
+            socket.close();
+        } catch (IOException | NumberFormatException e) {
+            // stale port file
+        }
+        return null;
+    }
+
+    private Socket spawnAndConnect(Path launcherJar, String javaVersion) throws IOException {
+        Files.createDirectories(dir);
+        try (FileChannel ch = FileChannel.open(dir.resolve(id + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FileLock lock = ch.lock();
+            try {
+                return spawnLocked(launcherJar, javaVersion);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private Socket spawnLocked(Path launcherJar, String javaVersion) throws IOException {
+        // started by a concurrent client?
+        final Socket existing = connect();
+        if (existing != null) {
+            return existing;
+        }
+        final List<String> command = new ArrayList<>();
+        final Path sh = Paths.get("/bin/sh");
+        if (Files.isExecutable(sh)) {
+            // ignored signals are inherited and kept by the jvm, so a ^C
+            // sent to the process group of the first client does not stop it
+            command.add(sh.toString());
+            command.add("-c");
+            command.add("trap '' INT HUP; exec \"$0\" \"$@\"");
+        }
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (!javaVersion.startsWith("1.")) {
+            // for SessionEnvironment
+            command.add("--add-opens");
+            command.add("java.base/java.lang=ALL-UNNAMED");
+            command.add("--add-opens");
+            command.add("java.base/java.util=ALL-UNNAMED");
+            if (Integer.parseInt(javaVersion) >= 12) {
+                command.add("-Djava.security.manager=allow");
+            }
+        }
+        command.add("-cp");
+        command.add(launcherJar.toString());
+        command.add(Launcher.class.getName());
+        command.add("--daemon");
+        command.add(dir.toAbsolutePath().toString());
+        command.add(id);
+        if (trace) {
+            System.err.println("++ " + String.join(" ", command));
+        }
+        final File logFile = dir.resolve(id + ".log").toFile();
+        final Process process = new ProcessBuilder(command)
+                .redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile))
+                .start();
+        final long deadline = System.currentTimeMillis() + SPAWN_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            final Socket socket = connect();
+            if (socket != null) {
+                return socket;
+            }
+            if (!process.isAlive()) {
+                return null;
+            }
+            try {
+                Thread.sleep(20L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static Integer session(Socket socket, String flags, String[] args) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeUTF(flags);
+        out.writeUTF(Paths.get("").toAbsolutePath().toString());
+        final Map<String, String> env = System.getenv();
+        out.writeInt(env.size());
+        for (Map.Entry<String, String> entry : env.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.writeInt(args.length);
+        for (String arg : args) {
+            out.writeUTF(arg);
+        }
+        out.flush();
+
+        // unbuffered, so that nothing is read beyond what the script asked for
+        final InputStream stdin = new FileInputStream(FileDescriptor.in);
+        final LinkedBlockingQueue<Integer> stdinReads = new LinkedBlockingQueue<>();
+        final Thread stdinPump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[STDIN_BUFFER_SIZE];
+                try {
+                    while (true) {
+                        final int n = stdin.read(buffer, 0, Math.min(stdinReads.take(), buffer.length));
+                        synchronized (out) {
+                            if (n < 0) {
+                                out.writeByte(FRAME_STDIN_EOF);
+                            } else {
+                                out.writeByte(FRAME_STDIN);
+                                out.writeInt(n);
+                                out.write(buffer, 0, n);
+                            }
+                            out.flush();
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // session closed
+                }
+            }
+        }, "stdin");
+        stdinPump.setDaemon(true);
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final byte[] buffer = new byte[8192];
+        try {
+            while (true) {
+                final byte type = in.readByte();
+                if (type == FRAME_EXIT) {
+                    System.out.flush();
+                    System.err.flush();
+                    return in.readInt();
+                }
+                if (type == FRAME_DECLINED) {
+                    return null;
+                }
+                int n = in.readInt();
+                if (type == FRAME_STDIN_READ) {
+                    if (stdinPump.getState() == Thread.State.NEW) {
+                        stdinPump.start();
+                    }
+                    stdinReads.add(n);
+                    continue;
+                }
+                final PrintStream target = type == FRAME_STDERR ? System.err : System.out;
+                while (n > 0) {
+                    final int read = in.read(buffer, 0, Math.min(n, buffer.length));
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    target.write(buffer, 0, read);
+                    n -= read;
+                }
+                target.flush();
+            }
+        } catch (EOFException e) {
+            System.err.println("error: lost connection to kotlin_script daemon");
+            return 1;
+        }
+    }
+
+    // ---- server ----
+
+    private static final InheritableThreadLocal<Session> currentSession = new InheritableThreadLocal<>();
+
+    private static final class ExitException extends SecurityException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ExitException(int status) {
+            super("exit " + status);
+            this.status = status;
+        }
+    }
+
+    @SuppressWarnings("removal")
+    private static final class ExitTrap extends SecurityManager {
+        @Override
+        public void checkPermission(Permission perm) {
+        }
+
+        @Override
+        public void checkPermission(Permission perm, Object context) {
+        }
+
+        @Override
+        public void checkExit(int status) {
+            final Session session = currentSession.get();
+            if (session != null) {
+                session.finish(status);
+                throw new ExitException(status);
+            }
+        }
+    }
+
+    /** Answers the per-script properties set by a direct launch from the session of the calling thread. */
+    private static final class SessionProperties extends Properties {
+        private static final long serialVersionUID = 1L;
+
+        SessionProperties(Properties properties) {
+            putAll(properties);
+        }
+
+        @Override
+        public String getProperty(String key) {
+            final Session session = currentSession.get();
+            if (session != null) {
+                if (key.equals("kotlin_script.name")) {
+                    return session.name;
+                }
+                if (key.equals("kotlin_script.flags")) {
+                    return session.flags;
+                }
+                if (key.equals("user.dir")) {
+                    return session.cwd;
+                }
+            }
+            return super.getProperty(key);
+        }
+    }
+
+    /** Answers {@code System.getenv} from the session of the calling thread. */
+    private static final class SessionEnvironment extends AbstractMap<String, String> {
+        private final Map<String, String> fallback;
+
+        SessionEnvironment(Map<String, String> fallback) {
+            this.fallback = fallback;
+        }
+
+        private Map<String, String> delegate() {
+            final Session session = currentSession.get();
+            return session == null ? fallback : session.env;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return delegate().entrySet();
+        }
+
+        @Override
+        public String get(Object key) {
+            return delegate().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return delegate().containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return delegate().size();
+        }
+    }
+
+    /** Routes System.out / System.err writes of session threads to their client. */
+    private static final class SessionOutputStream extends OutputStream {
+        private final OutputStream fallback;
+        private final byte type;
+
+        SessionOutputStream(OutputStream fallback, byte type) {
+            this.fallback = fallback;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final Session session = currentSession.get();
+            if (session == null) {
+                fallback.write(b, off, len);
+            } else {
+                session.write(type, b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            final Session session = currentSession.get();
+            if (session == null) {
+                fallback.flush();
+            }
+        }
+    }
+
+    private static final class SessionInputStream extends InputStream {
+        private final InputStream fallback;
+
+        SessionInputStream(InputStream fallback) {
+            this.fallback = fallback;
+        }
+
+        private InputStream delegate() {
+            final Session session = currentSession.get();
+            return session == null ? fallback : session.stdin;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return delegate().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return delegate().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return delegate().available();
+        }
+    }
+
+    private static final class Session {
+        final String name;
+        final String flags;
+        final String cwd;
+        final Map<String, String> env;
+        private final Socket socket;
+        private final ThreadGroup group;
+        private final Runnable release;
+        private final DataOutputStream out;
+        private final PipedOutputStream stdinSink = new PipedOutputStream();
+        private final PipedInputStream stdinSource;
+        private volatile boolean stdinEof;
+        private boolean finished;
+
+        /** Asks the client for as many bytes as the script reads. */
+        final InputStream stdin = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (stdinSource.available() == 0 && !stdinEof) {
+                    requestStdin(Math.min(len, STDIN_BUFFER_SIZE));
+                }
+                return stdinSource.read(b, off, len);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return stdinSource.available();
+            }
+        };
+
+        Session(Socket socket, ThreadGroup group, Runnable release, String name, String flags, String cwd,
+                Map<String, String> env) throws IOException {
+            this.name = name;
+            this.flags = flags;
+            this.cwd = cwd;
+            this.env = env;
+            this.socket = socket;
+            this.group = group;
+            this.release = release;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.stdinSource = new PipedInputStream(stdinSink, STDIN_BUFFER_SIZE);
+        }
+
+        private synchronized void requestStdin(int len) throws IOException {
+            if (finished) {
+                return;
+            }
+            out.writeByte(FRAME_STDIN_READ);
+            out.writeInt(len);
+            out.flush();
+        }
+
+        synchronized void write(byte type, byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                return;
+            }
+            out.writeByte(type);
+            out.writeInt(len);
+            out.write(b, off, len);
+            out.flush();
+        }
+
+        synchronized void finish(int status) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            try {
+                out.writeByte(FRAME_EXIT);
+                out.writeInt(status);
+                out.flush();
+                socket.close();
+            } catch (IOException e) {
+                // client gone
+            }
+        }
+
+        /**
+         * Forwards the stdin frames requested by the script and watches the
+         * connection until the session is finished.
+         */
+        void pumpStdin(DataInputStream in) {
+            final byte[] buffer = new byte[8192];
+            boolean open = true;
+            try {
+                while (true) {
+                    final byte type = in.readByte();
+                    if (type == FRAME_STDIN_EOF) {
+                        stdinEof = true;
+                        closeStdin();
+                        open = false;
+                        continue;
+                    }
+                    int n = in.readInt();
+                    while (n > 0) {
+                        final int read = in.read(buffer, 0, Math.min(n, buffer.length));
+                        if (read < 0) {
+                            throw new EOFException();
+                        }
+                        if (open) {
+                            try {
+                                stdinSink.write(buffer, 0, read);
+                            } catch (IOException e) {
+                                // script stopped reading
+                                open = false;
+                            }
+                        }
+                        n -= read;
+                    }
+                }
+            } catch (IOException e) {
+                // finished or client gone
+            } finally {
+                stdinEof = true;
+                closeStdin();
+                disconnected();
+            }
+        }
+
+        private void closeStdin() {
+            try {
+                stdinSink.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        private void disconnected() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            // nobody waits for the result: stop the script and count the session as done
+            release.run();
+            group.interrupt();
+        }
+    }
+
+    private static String daemonCwd;
+    private static Map<String, String> daemonEnv;
+    private static boolean sessionEnvironment;
+
+    static void serve(Path dir, String id) throws IOException {
+        final Daemon daemon = new Daemon(dir, id);
+        try {
+            setSecurityManager(new ExitTrap());
+        } catch (UnsupportedOperationException | SecurityException e) {
+            System.err.println("error: cannot trap System.exit: " + e);
+            System.exit(2);
+        }
+        daemonCwd = Paths.get("").toAbsolutePath().toString();
+        daemonEnv = new HashMap<>(System.getenv());
+        sessionEnvironment = installSessionEnvironment();
+        if (!sessionEnvironment) {
+            System.err.println("warning: cannot forward the environment, sessions with another one are declined");
+        }
+        System.setProperties(new SessionProperties(System.getProperties()));
+        System.setOut(new PrintStream(new SessionOutputStream(System.out, FRAME_STDOUT), true));
+        System.setErr(new PrintStream(new SessionOutputStream(System.err, FRAME_STDERR), true));
+        System.setIn(new SessionInputStream(System.in));
+        daemon.acceptLoop();
+    }
+
+    /**
+     * Replaces the map behind {@code System.getenv()}, which is only read
+     * through {@code ProcessEnvironment.theUnmodifiableEnvironment} on unix.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean installSessionEnvironment() {
+        try {
+            final Field theUnmodifiableEnvironment = Class.forName("java.lang.ProcessEnvironment")
+                    .getDeclaredField("theUnmodifiableEnvironment");
+            theUnmodifiableEnvironment.setAccessible(true);
+            final Object unmodifiable = theUnmodifiableEnvironment.get(null);
+            final Class<?> unmodifiableMap = Class.forName("java.util.Collections$UnmodifiableMap");
+            if (unmodifiable == null || unmodifiable.getClass() != unmodifiableMap) {
+                return false;
+            }
+            final Field m = unmodifiableMap.getDeclaredField("m");
+            m.setAccessible(true);
+            m.set(unmodifiable, new SessionEnvironment((Map<String, String>) m.get(unmodifiable)));
+            // views of the previous map
+            for (String name : new String[]{"keySet", "entrySet", "values"}) {
+                final Field view = unmodifiableMap.getDeclaredField(name);
+                view.setAccessible(true);
+                view.set(unmodifiable, null);
+            }
+            return System.getenv() == unmodifiable;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static boolean sameEnvironment(Map<String, String> env) {
+        final Map<String, String> a = new HashMap<>(env);
+        final Map<String, String> b = new HashMap<>(daemonEnv);
+        for (String key : new String[]{"_", "OLDPWD"}) {
+            a.remove(key);
+            b.remove(key);
+        }
+        return a.equals(b);
+    }
+
+    // deprecated for removal since jdk 17, isSupported limits the daemon to jdk 23
+    @SuppressWarnings("removal")
+    private static void setSecurityManager(SecurityManager sm) {
+        System.setSecurityManager(sm);
+    }
+
+    private void acceptLoop() throws IOException {
+        long idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_S;
+        final String idleEnv = System.getenv("KOTLIN_SCRIPT_DAEMON_IDLE");
+        if (idleEnv != null) {
+            try {
+                idleTimeoutSeconds = Long.parseLong(idleEnv.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("warning: ignored invalid KOTLIN_SCRIPT_DAEMON_IDLE: " + idleEnv);
+            }
+        }
+        final byte[] tokenBytes = new byte[32];
+        new SecureRandom().nextBytes(tokenBytes);
+        final StringBuilder token = new StringBuilder();
+        for (byte b : tokenBytes) {
+            token.append(String.format("%02x", b & 0xFF));
+        }
+        final AtomicInteger active = new AtomicInteger();
+        long lastActive = System.currentTimeMillis();
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            serverSocket.setSoTimeout(5_000);
+            writePortFile(serverSocket.getLocalPort() + " " + token);
+            try {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (SocketTimeoutException e) {
+                        if (active.get() > 0) {
+                            lastActive = System.currentTimeMillis();
+                        } else if (System.currentTimeMillis() - lastActive >=
+                                TimeUnit.SECONDS.toMillis(idleTimeoutSeconds)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    lastActive = System.currentTimeMillis();
+                    active.incrementAndGet();
+                    startSession(socket, token.toString(), active);
+                }
+            } finally {
+                Files.deleteIfExists(portFile);
+            }
+        }
+        System.exit(0);
+    }
+
+    private void writePortFile(String content) throws IOException {
+        Files.createDirectories(dir);
+        final Path tmp = Files.createTempFile(dir, id, ".port~");
+        try {
+            try {
+                Files.setPosixFilePermissions(tmp, EnumSet.of(PosixFilePermission.OWNER_READ,
+                        PosixFilePermission.OWNER_WRITE));
+            } catch (UnsupportedOperationException e) {
+                // not a posix file system
+            }
+            Files.write(tmp, content.getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp, portFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void startSession(final Socket socket, final String token, final AtomicInteger active) {
+        final ThreadGroup group = new ThreadGroup("session");
+        final AtomicBoolean released = new AtomicBoolean();
+        final Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                if (released.compareAndSet(false, true)) {
+                    active.decrementAndGet();
+                }
+            }
+        };
+        final Thread thread = new Thread(group, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runSession(socket, token, group, release);
+                } catch (IOException e) {
+                    // client gone
+                } finally {
+                    release.run();
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }, "main");
+        thread.start();
+    }
+
+    private void runSession(Socket socket, String token, ThreadGroup group, Runnable release) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final String clientToken = in.readUTF();
+        final String clientId = in.readUTF();
+        if (!MessageDigest.isEqual(clientToken.getBytes(StandardCharsets.US_ASCII),
+                token.getBytes(StandardCharsets.US_ASCII)) || !clientId.equals(id)) {
+            socket.getOutputStream().write(0);
+            return;
+        }
+        socket.getOutputStream().write(1);
+        final String flags = in.readUTF();
+        final String cwd = in.readUTF();
+        final Map<String, String> env = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            env.put(in.readUTF(), in.readUTF());
+        }
+        final String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        if (!cwd.equals(daemonCwd) || !(sessionEnvironment || sameEnvironment(env))) {
+            socket.getOutputStream().write(FRAME_DECLINED);
+            return;
+        }
+        final Session session = new Session(socket, group, release, args[0], flags, cwd,
+                Collections.unmodifiableMap(env));
+        final Thread stdinPump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                session.pumpStdin(in);
+            }
+        }, "stdin");
+        stdinPump.setDaemon(true);
+        stdinPump.start();
+
+        currentSession.set(session);
+        int status = 0;
+        try {
+            Launcher.runScript(args);
+            awaitNonDaemonThreads(group);
+        } catch (ExitException e) {
+            status = e.status;
+        } catch (Throwable e) {
+            Throwable cause = e;
+            while (isWrapper(cause)) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof ExitException) {
+                status = ((ExitException) cause).status;
+            } else {
+                System.err.print("Exception in thread \"main\" ");
+                e.printStackTrace();
+                status = 1;
+            }
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            session.finish(status);
+            currentSession.remove();
+        }
+    }
+
+    /** Wraps the reflective and runtime exceptions thrown by the launcher. */
+    private static boolean isWrapper(Throwable e) {
+        return e instanceof java.lang.reflect.InvocationTargetException ||
+                (e.getClass() == RuntimeException.class && e.getCause() != null);
+    }
+
+    private static void awaitNonDaemonThreads(ThreadGroup group) {
+        final Thread self = Thread.currentThread();
+        while (true) {
+            final Thread[] threads = new Thread[group.activeCount() + 8];
+            final int n = group.enumerate(threads, true);
+            Thread other = null;
+            for (int i = 0; i < n; i++) {
+                if (threads[i] != self && !threads[i].isDaemon() && threads[i].isAlive()) {
+                    other = threads[i];
+                    break;
+                }
+            }
+            if (other == null) {
+                return;
+            }
+            try {
+                other.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,731 @@
+package kotlin_script;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Class loader over memory-mapped jars with {@code KOTLIN_SCRIPT_CLASSLOADER=indexed}.
+ *
+ * A package index maps each directory to the jars containing entries in
+ * it, so a lookup only probes the jars that can have the class or resource
+ * instead of searching the class path in order. The index is stored next
+ * to the script jar, together with the jars added by manifest
+ * {@code Class-Path} attributes, and rebuilt when the size or mtime of a
+ * jar changes. The central directory of a jar is only read when the jar is
+ * first probed. Entries of multi-release jars are looked up in
+ * {@code META-INF/versions} for the running jdk first, like {@code JarFile}
+ * does.
+ *
+ * Jar signatures are not verified and zip64 jars are not supported; the
+ * launcher falls back to {@code URLClassLoader} when a jar cannot be read.
+ */
+final class IndexedClassLoader extends ClassLoader {
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    // "KSCI"
+    private static final int MAGIC = 0x4b534349;
+    private static final int VERSION = 3;
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT = 0xffff;
+
+    private static final int[] NONE = new int[0];
+
+    private static final String VERSIONS = "META-INF/versions/";
+    private static final int RUNTIME_VERSION = runtimeVersion();
+
+    private final Jar[] jars;
+    private final Map<String, int[]> packages;
+
+    IndexedClassLoader(List<Path> classPath, Path indexFile, boolean trace, ClassLoader parent) throws IOException {
+        super(parent);
+        final List<Jar> given = new ArrayList<>();
+        for (Path f : classPath) {
+            given.add(new Jar(f, true));
+        }
+        final List<Jar> storedJars = new ArrayList<>();
+        final Map<String, int[]> stored = readIndex(indexFile, given, storedJars);
+        if (stored != null) {
+            jars = storedJars.toArray(new Jar[0]);
+            packages = stored;
+        } else {
+            if (trace) {
+                System.err.println("++ write " + indexFile);
+            }
+            jars = withManifestClassPath(given).toArray(new Jar[0]);
+            packages = buildIndex(jars);
+            try {
+                writeIndex(indexFile, jars, packages);
+            } catch (IOException e) {
+                System.err.println("warning: failed to write " + indexFile + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Adds the jars named by the {@code Class-Path} manifest attribute of
+     * each jar right after it, in the order {@code URLClassLoader} searches
+     * them. Missing jars and other urls are left out.
+     */
+    private static List<Jar> withManifestClassPath(List<Jar> given) throws IOException {
+        final List<Jar> result = new ArrayList<>();
+        final Set<Path> seen = new HashSet<>();
+        for (Jar jar : given) {
+            addWithManifestClassPath(jar, result, seen);
+        }
+        return result;
+    }
+
+    private static void addWithManifestClassPath(Jar jar, List<Jar> result, Set<Path> seen) throws IOException {
+        if (!seen.add(jar.path)) {
+            return;
+        }
+        result.add(jar);
+        final Manifest manifest = jar.manifest();
+        final String classPath = manifest == null ? null :
+                manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+        if (classPath == null) {
+            return;
+        }
+        final URL base = jar.path.toUri().toURL();
+        for (String spec : classPath.trim().split("\\s+")) {
+            if (spec.isEmpty()) {
+                continue;
+            }
+            final Path f;
+            try {
+                final URL url = new URL(base, spec);
+                if (!url.getProtocol().equals("file")) {
+                    continue;
+                }
+                f = Paths.get(url.toURI()).normalize();
+            } catch (MalformedURLException | URISyntaxException | IllegalArgumentException e) {
+                continue;
+            }
+            if (Files.isRegularFile(f)) {
+                addWithManifestClassPath(new Jar(f, false), result, seen);
+            }
+        }
+    }
+
+    static Path indexFile(Path jar) {
+        final String name = jar.getFileName().toString();
+        final String base = name.endsWith(".jar") ? name.substring(0, name.length() - 4) : name;
+        return jar.resolveSibling(base + ".cpindex");
+    }
+
+    private static int runtimeVersion() {
+        final String version = System.getProperty("java.specification.version", "1.8");
+        try {
+            return version.startsWith("1.") ? 8 : Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+
+    /**
+     * Returns the version of a {@code META-INF/versions/<n>/} entry, or -1.
+     */
+    private static int versionOf(String name) {
+        if (!name.startsWith(VERSIONS)) {
+            return -1;
+        }
+        final int end = name.indexOf('/', VERSIONS.length());
+        try {
+            return end < 0 ? -1 : Integer.parseInt(name.substring(VERSIONS.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String directoryOf(String name) {
+        final int i = name.lastIndexOf('/', name.length() - 2);
+        return i < 0 ? "" : name.substring(0, i);
+    }
+
+    private int[] jarsFor(String name) {
+        final int[] result = packages.get(directoryOf(name));
+        return result == null ? NONE : result;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        final String entryName = name.replace('.', '/') + ".class";
+        for (int i : jarsFor(entryName)) {
+            final Jar jar = jars[i];
+            final ByteBuffer data;
+            try {
+                data = jar.read(entryName);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+            if (data == null) {
+                continue;
+            }
+            final int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                definePackageIfAbsent(name.substring(0, dot), jar);
+            }
+            return defineClass(name, data, jar.protectionDomain);
+        }
+        throw new ClassNotFoundException(name);
+    }
+
+    /**
+     * Defines package {@code name} with the attributes of the manifest of
+     * {@code jar}, like {@code URLClassLoader}.
+     */
+    @SuppressWarnings("deprecation")
+    private void definePackageIfAbsent(String name, Jar jar) {
+        if (getPackage(name) != null) {
+            return;
+        }
+        Manifest manifest;
+        try {
+            manifest = jar.manifest();
+        } catch (IOException e) {
+            manifest = null;
+        }
+        try {
+            if (manifest == null) {
+                definePackage(name, null, null, null, null, null, null, null);
+                return;
+            }
+            final Attributes entry = manifest.getAttributes(name.replace('.', '/') + "/");
+            final Attributes main = manifest.getMainAttributes();
+            definePackage(name,
+                    attribute(entry, main, Attributes.Name.SPECIFICATION_TITLE),
+                    attribute(entry, main, Attributes.Name.SPECIFICATION_VERSION),
+                    attribute(entry, main, Attributes.Name.SPECIFICATION_VENDOR),
+                    attribute(entry, main, Attributes.Name.IMPLEMENTATION_TITLE),
+                    attribute(entry, main, Attributes.Name.IMPLEMENTATION_VERSION),
+                    attribute(entry, main, Attributes.Name.IMPLEMENTATION_VENDOR),
+                    "true".equalsIgnoreCase(attribute(entry, main, Attributes.Name.SEALED)) ? jar.url : null);
+        } catch (IllegalArgumentException e) {
+            // defined concurrently
+        }
+    }
+
+    private static String attribute(Attributes entry, Attributes main, Attributes.Name name) {
+        final String value = entry == null ? null : entry.getValue(name);
+        return value == null ? main.getValue(name) : value;
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        for (int i : jarsFor(name)) {
+            final URL url = jars[i].url(name);
+            if (url != null) {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+        final List<URL> result = new ArrayList<>();
+        for (int i : jarsFor(name)) {
+            final URL url = jars[i].url(name);
+            if (url != null) {
+                result.add(url);
+            }
+        }
+        return Collections.enumeration(result);
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        final ClassLoader parent = getParent();
+        final InputStream in = parent == null ? getSystemResourceAsStream(name) : parent.getResourceAsStream(name);
+        if (in != null) {
+            return in;
+        }
+        // straight from the mapped jar instead of a jar: url connection
+        for (int i : jarsFor(name)) {
+            try {
+                final InputStream entry = jars[i].open(name);
+                if (entry != null) {
+                    return entry;
+                }
+            } catch (IOException e) {
+                System.err.println("warning: failed to read " + name + " from " + jars[i].path + ": " + e);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer data;
+
+        ByteBufferInputStream(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return data.hasRemaining() ? data.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, data.remaining());
+            data.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0L, Math.min(n, data.remaining()));
+            data.position(data.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return data.remaining();
+        }
+    }
+
+    /**
+     * Inflates a deflated entry while it is read.
+     */
+    private static final class EntryInputStream extends InflaterInputStream {
+        private boolean eof;
+
+        EntryInputStream(ByteBuffer data) {
+            super(new ByteBufferInputStream(data), new Inflater(true));
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("unexpected end of entry");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len < 0) {
+                // the inflater may need a dummy byte after the entry (nowrap)
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+
+    private static final class Jar {
+        final Path path;
+        final long size;
+        final long mtime;
+        final boolean given;
+        final URL url;
+        final ProtectionDomain protectionDomain;
+        private final String urlPrefix;
+        private ByteBuffer buffer;
+        private Map<String, Integer> entries;
+        private Manifest manifest;
+        private boolean manifestRead;
+        private int[] versions;
+
+        Jar(Path path, boolean given) throws IOException {
+            this.path = path.toAbsolutePath();
+            this.size = Files.size(path);
+            this.mtime = Files.getLastModifiedTime(path).toMillis();
+            this.given = given;
+            this.url = this.path.toUri().toURL();
+            this.protectionDomain = new ProtectionDomain(new CodeSource(url, (Certificate[]) null), null);
+            this.urlPrefix = "jar:" + url + "!/";
+        }
+
+        /**
+         * Reads the manifest, once, or returns {@code null} if there is none.
+         */
+        synchronized Manifest manifest() throws IOException {
+            if (!manifestRead) {
+                final InputStream in = open("META-INF/MANIFEST.MF");
+                if (in != null) {
+                    try {
+                        manifest = new Manifest(in);
+                    } finally {
+                        in.close();
+                    }
+                }
+                manifestRead = true;
+            }
+            return manifest;
+        }
+
+        /**
+         * Returns the entry that {@code JarFile} reads for {@code name} on
+         * the running jdk: the one of the highest version up to it in a
+         * multi-release jar, else {@code name}.
+         */
+        private String versioned(String name) throws IOException {
+            final Map<String, Integer> entries = entries();
+            if (versions.length == 0 || name.startsWith("META-INF/")) {
+                return name;
+            }
+            final Manifest m = manifest();
+            if (m == null || !"true".equalsIgnoreCase(m.getMainAttributes().getValue("Multi-Release"))) {
+                return name;
+            }
+            for (int version : versions) {
+                final String versioned = VERSIONS + version + "/" + name;
+                if (entries.containsKey(versioned)) {
+                    return versioned;
+                }
+            }
+            return name;
+        }
+
+        /**
+         * Maps the jar and reads its central directory, once.
+         */
+        synchronized Map<String, Integer> entries() throws IOException {
+            if (entries != null) {
+                return entries;
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new ZipException("too large: " + path);
+            }
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0L, size).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            final Map<String, Integer> result = new HashMap<>();
+            final Set<Integer> versionSet = new HashSet<>();
+            try {
+                int end = -1;
+                for (int i = buffer.limit() - END_SIZE; i >= 0 && i >= buffer.limit() - END_SIZE - MAX_COMMENT; i--) {
+                    if (buffer.getInt(i) == END_SIG) {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    throw new ZipException("no central directory: " + path);
+                }
+                final int count = buffer.getShort(end + 10) & 0xffff;
+                final long offset = buffer.getInt(end + 16) & 0xffffffffL;
+                if (count == 0xffff || offset == 0xffffffffL) {
+                    throw new ZipException("zip64 not supported: " + path);
+                }
+                int pos = (int) offset;
+                for (int i = 0; i < count; i++) {
+                    if (buffer.getInt(pos) != CEN_SIG) {
+                        throw new ZipException("invalid central directory: " + path);
+                    }
+                    final int nameLength = buffer.getShort(pos + 28) & 0xffff;
+                    final int extraLength = buffer.getShort(pos + 30) & 0xffff;
+                    final int commentLength = buffer.getShort(pos + 32) & 0xffff;
+                    final byte[] name = new byte[nameLength];
+                    final ByteBuffer nameBuffer = buffer.duplicate();
+                    nameBuffer.position(pos + 46);
+                    nameBuffer.get(name);
+                    final String entryName = new String(name, StandardCharsets.UTF_8);
+                    result.put(entryName, pos);
+                    final int version = versionOf(entryName);
+                    if (version >= 9 && version <= RUNTIME_VERSION) {
+                        versionSet.add(version);
+                    }
+                    pos += 46 + nameLength + extraLength + commentLength;
+                }
+            } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+                throw new ZipException("invalid central directory: " + path);
+            }
+            final List<Integer> sorted = new ArrayList<>(versionSet);
+            Collections.sort(sorted, Collections.<Integer>reverseOrder());
+            versions = new int[sorted.size()];
+            for (int i = 0; i < versions.length; i++) {
+                versions[i] = sorted.get(i);
+            }
+            entries = result;
+            return entries;
+        }
+
+        /**
+         * Returns the data of entry {@code name}, a slice of the mapped jar
+         * for stored entries, or {@code null} if there is no such entry.
+         */
+        ByteBuffer read(String name) throws IOException {
+            final Integer cen = entries().get(versioned(name));
+            if (cen == null || name.endsWith("/")) {
+                return null;
+            }
+            final ByteBuffer data = compressedData(cen, name);
+            final int method = buffer.getShort(cen + 10) & 0xffff;
+            final int compressedSize = data.remaining();
+            final int uncompressedSize = buffer.getInt(cen + 24);
+            if (method == 0) {
+                return data;
+            }
+            final byte[] input = new byte[compressedSize];
+            data.get(input);
+            final byte[] output = new byte[uncompressedSize];
+            final Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(input);
+                int n = 0;
+                while (n < output.length) {
+                    final int read = inflater.inflate(output, n, output.length - n);
+                    if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += read;
+                }
+                if (n != output.length) {
+                    throw new ZipException("truncated entry " + name + ": " + path);
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("invalid entry " + name + ": " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            return ByteBuffer.wrap(output);
+        }
+
+        /**
+         * Returns a stream over entry {@code name}, inflated while it is
+         * read, or {@code null} if there is no such entry.
+         */
+        InputStream open(String name) throws IOException {
+            final Integer cen = entries().get(versioned(name));
+            if (cen == null || name.endsWith("/")) {
+                return null;
+            }
+            final ByteBuffer data = compressedData(cen, name);
+            if ((buffer.getShort(cen + 10) & 0xffff) == 0) {
+                return new ByteBufferInputStream(data);
+            }
+            return new EntryInputStream(data);
+        }
+
+        /**
+         * Returns a slice of the mapped jar with the data of the entry at
+         * central directory offset {@code cen}, as stored in the jar.
+         */
+        private ByteBuffer compressedData(int cen, String name) throws IOException {
+            final int method = buffer.getShort(cen + 10) & 0xffff;
+            final int compressedSize = buffer.getInt(cen + 20);
+            final int uncompressedSize = buffer.getInt(cen + 24);
+            final int loc = buffer.getInt(cen + 42);
+            if (compressedSize < 0 || uncompressedSize < 0 || loc < 0 || buffer.getInt(loc) != LOC_SIG) {
+                throw new ZipException("invalid entry " + name + ": " + path);
+            }
+            if (method != 0 && method != 8) {
+                throw new ZipException("unsupported compression method " + method + ": " + name);
+            }
+            final int start = loc + 30 + (buffer.getShort(loc + 26) & 0xffff) + (buffer.getShort(loc + 28) & 0xffff);
+            final ByteBuffer data = buffer.duplicate();
+            data.position(start);
+            data.limit(start + compressedSize);
+            return data.slice();
+        }
+
+        URL url(String name) {
+            try {
+                final String entryName = versioned(name);
+                if (!entries().containsKey(entryName)) {
+                    return null;
+                }
+                return new URL(urlPrefix + entryName);
+            } catch (MalformedURLException e) {
+                return null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    private static Map<String, int[]> buildIndex(Jar[] jars) throws IOException {
+        final Map<String, List<Integer>> index = new LinkedHashMap<>();
+        for (int i = 0; i < jars.length; i++) {
+            for (String name : jars[i].entries().keySet()) {
+                // versioned entries are looked up by their unversioned name
+                final int version = versionOf(name);
+                final String dir = directoryOf(version < 0 ? name :
+                        name.substring(name.indexOf('/', VERSIONS.length()) + 1));
+                List<Integer> list = index.get(dir);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    index.put(dir, list);
+                }
+                if (list.isEmpty() || list.get(list.size() - 1) != i) {
+                    list.add(i);
+                }
+            }
+        }
+        final Map<String, int[]> result = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : index.entrySet()) {
+            final int[] indices = new int[entry.getValue().size()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = entry.getValue().get(i);
+            }
+            result.put(entry.getKey(), indices);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stored package index if it was built from the same jars,
+     * and adds the jars it refers to to {@code jars}, otherwise {@code null}.
+     */
+    private static Map<String, int[]> readIndex(Path indexFile, List<Jar> given, List<Jar> jars) {
+        final ByteBuffer buffer;
+        try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0L, ch.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            final int jarCount = buffer.getInt();
+            int nextGiven = 0;
+            for (int i = 0; i < jarCount; i++) {
+                final boolean isGiven = buffer.get() != 0;
+                final Path path = Paths.get(getString(buffer));
+                final long size = buffer.getLong();
+                final long mtime = buffer.getLong();
+                final Jar jar;
+                if (isGiven) {
+                    if (nextGiven >= given.size()) {
+                        return null;
+                    }
+                    jar = given.get(nextGiven++);
+                    if (!jar.path.equals(path)) {
+                        return null;
+                    }
+                } else {
+                    jar = new Jar(path, false);
+                }
+                if (jar.size != size || jar.mtime != mtime) {
+                    return null;
+                }
+                jars.add(jar);
+            }
+            if (nextGiven != given.size()) {
+                return null;
+            }
+            final int count = buffer.getInt();
+            final Map<String, int[]> result = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                final String dir = getString(buffer);
+                final int[] indices = new int[buffer.getInt()];
+                for (int j = 0; j < indices.length; j++) {
+                    indices[j] = buffer.getInt();
+                    if (indices[j] < 0 || indices[j] >= jarCount) {
+                        return null;
+                    }
+                }
+                result.put(dir, indices);
+            }
+            return result;
+        } catch (BufferUnderflowException | IllegalArgumentException | IOException e) {
+            // includes a missing Class-Path jar
+            return null;
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeIndex(Path indexFile, Jar[] jars, Map<String, int[]> packages) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(jars.length);
+            for (Jar jar : jars) {
+                out.writeByte(jar.given ? 1 : 0);
+                putString(out, jar.path.toString());
+                out.writeLong(jar.size);
+                out.writeLong(jar.mtime);
+            }
+            out.writeInt(packages.size());
+            for (Map.Entry<String, int[]> entry : packages.entrySet()) {
+                putString(out, entry.getKey());
+                out.writeInt(entry.getValue().length);
+                for (int i : entry.getValue()) {
+                    out.writeInt(i);
+                }
+            }
+        }
+        final Path tmp = Files.createTempFile(indexFile.getParent(), indexFile.getFileName() + "~", "");
+        try {
+            Files.write(tmp, bytes.toByteArray());
+            Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package kotlin_script;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Layout of cached script jars with {@code KOTLIN_SCRIPT_JAR_LAYOUT=stored}.
+ *
+ * On the first run of a jar the script jar entries are recorded in the
+ * order they are loaded. The order is kept per script in the cache
+ * ({@code order/<key>.order}) and later compilations of the script write
+ * their entries in that order, right after the manifest. The first line
+ * ({@code ///JAR=<file name>}) names the jar it was recorded for.
+ */
+final class JarLayout {
+
+    private static final String JAR_PREFIX = "///JAR=";
+
+    private JarLayout() {
+    }
+
+    /**
+     * Same key as {@code KotlinScript.orderFile}.
+     */
+    static Path orderFile(Path cacheDir, Path scriptFile) {
+        final String path = scriptFile.toAbsolutePath().normalize().toString();
+        final byte[] sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            sb.append(String.format("%02x", sha256[i] & 0xFF));
+        }
+        return cacheDir.resolve("order").resolve(sb + ".order");
+    }
+
+    /**
+     * Whether {@code orderFile} was recorded for {@code jar}.
+     */
+    static boolean isRecorded(Path orderFile, Path jar) {
+        try (BufferedReader reader = Files.newBufferedReader(orderFile, StandardCharsets.UTF_8)) {
+            final String line = reader.readLine();
+            return line != null && line.equals(JAR_PREFIX + jar.getFileName());
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            System.err.println("warning: failed to read " + orderFile + ": " + e);
+            return true;
+        }
+    }
+
+    /**
+     * Records the entries loaded from {@code jar}, the first element of the
+     * class path. Dependencies are loaded as they are.
+     */
+    static final class RecordingClassLoader extends URLClassLoader {
+        private final URL jar;
+        private final String jarPrefix;
+        private final Set<String> loaded = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+        RecordingClassLoader(URL[] urls, ClassLoader parent) {
+            super(urls, parent);
+            this.jar = urls[0];
+            this.jarPrefix = "jar:" + urls[0] + "!/";
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            final Class<?> c = super.findClass(name);
+            final CodeSource cs = c.getProtectionDomain().getCodeSource();
+            if (cs != null && jar.equals(cs.getLocation())) {
+                loaded.add(name.replace('.', '/') + ".class");
+            }
+            return c;
+        }
+
+        @Override
+        public URL findResource(String name) {
+            final URL url = super.findResource(name);
+            if (url != null && url.toString().startsWith(jarPrefix)) {
+                loaded.add(name);
+            }
+            return url;
+        }
+
+        List<String> loaded() {
+            synchronized (loaded) {
+                return new ArrayList<>(loaded);
+            }
+        }
+    }
+
+    /**
+     * Writes the order file once, when the script returns or the jvm exits,
+     * whichever happens first.
+     */
+    static final class Recorder implements Runnable {
+        private final Path orderFile;
+        private final Path jar;
+        private final RecordingClassLoader cl;
+        private final boolean trace;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        Recorder(Path orderFile, Path jar, RecordingClassLoader cl, boolean trace) {
+            this.orderFile = orderFile;
+            this.jar = jar;
+            this.cl = cl;
+            this.trace = trace;
+        }
+
+        @Override
+        public void run() {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if (trace) {
+                    System.err.println("++ record " + orderFile);
+                }
+                write(orderFile, jar, cl.loaded());
+            } catch (IOException e) {
+                System.err.println("warning: failed to record " + orderFile + ": " + e);
+            }
+        }
+    }
+
+    static void write(Path orderFile, Path jar, List<String> order) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(JAR_PREFIX).append(jar.getFileName()).append('\n');
+        for (String name : order) {
+            sb.append(name).append('\n');
+        }
+        Files.createDirectories(orderFile.getParent());
+        final Path tmp = Files.createTempFile(orderFile.getParent(), orderFile.getFileName() + "~", "");
+        try {
+            Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, orderFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package kotlin_script;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader for the launch index written by {@code LaunchIndex.kt}. Maps a
+ * script sha256 to the cached jar, main class and class path, so a warm
+ * start does not need to parse the metadata file or probe the cache dir.
+ * Only the bucket of the first sha256 byte is read.
+ */
+final class LaunchIndex {
+
+    // "KSLI"
+    private static final int MAGIC = 0x4b534c49;
+
+    static final class Entry {
+        final String jar;
+        final String mainClass;
+        final List<String> classPath;
+        final List<String> includes;
+        final List<byte[]> includeSha256;
+
+        private Entry(String jar, String mainClass, List<String> classPath,
+                      List<String> includes, List<byte[]> includeSha256) {
+            this.jar = jar;
+            this.mainClass = mainClass;
+            this.classPath = classPath;
+            this.includes = includes;
+            this.includeSha256 = includeSha256;
+        }
+    }
+
+    private LaunchIndex() {
+    }
+
+    static Path bucket(Path dir, byte[] scriptSha256) {
+        return dir.resolve(String.format("%02x.index", scriptSha256[0] & 0xFF));
+    }
+
+    static Entry find(Path dir, byte[] scriptSha256, String javaVersion) throws IOException {
+        ByteBuffer match = null;
+        for (ByteBuffer r : new RecordLog(bucket(dir, scriptSha256), MAGIC).read()) {
+            if (r.remaining() < 34) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < 32; i++) {
+                if (r.get(i) != scriptSha256[i]) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (!matches) {
+                continue;
+            }
+            final ByteBuffer record = r.duplicate();
+            ((Buffer) record).position(32);
+            if (javaVersion.equals(RecordLog.getString(record))) {
+                // last record wins
+                match = record;
+            }
+        }
+        if (match == null) {
+            return null;
+        }
+        final String jar = RecordLog.getString(match);
+        final String mainClass = RecordLog.getString(match);
+        final int classPathSize = match.getShort() & 0xFFFF;
+        final List<String> classPath = new ArrayList<>(classPathSize);
+        for (int i = 0; i < classPathSize; i++) {
+            classPath.add(RecordLog.getString(match));
+        }
+        final int incSize = match.getShort() & 0xFFFF;
+        final List<String> includes = new ArrayList<>(incSize);
+        final List<byte[]> includeSha256 = new ArrayList<>(incSize);
+        for (int i = 0; i < incSize; i++) {
+            includes.add(RecordLog.getString(match));
+            final byte[] sha256 = new byte[32];
+            match.get(sha256);
+            includeSha256.add(sha256);
+        }
+        return new Entry(jar, mainClass, classPath, includes, includeSha256);
+    }
+}
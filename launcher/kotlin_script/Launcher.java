@@ -8,11 +8,15 @@ import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -21,7 +25,14 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
 
@@ -32,12 +43,17 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
 
     private String progressMsg;
     private long progressTotal;
-    private long progressDone;
+    private final AtomicLong progressDone = new AtomicLong();
     private final Object progressLock = new Object();
+
+    private static final int FETCH_THREADS = 4;
     private Thread progressThread;
 
     private final String centralRepo;
     private final Path localMirror;
+    private final boolean linkFromMirror;
+    private final boolean storedJarLayout;
+    private final boolean indexedClassLoader;
     private final Path localRepo;
 
     private final String kotlinVersion = "2.4.0";
@@ -86,9 +102,16 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
     private final MessageDigest md;
 
     private final Path scriptFile;
-    private final byte[] scriptFileData;
-    private final String scriptFileSha256;
-    private final Path scriptMetadata;
+    private byte[] scriptFileData;
+    private String scriptFileSha256;
+    private byte[] scriptFileSha256Bytes;
+    private Path scriptMetadata;
+    private final Path launchIndex;
+    private final StatCache statCache;
+    private final StatCache artifactStamps;
+
+    private final Path cdsArchive;
+    private final Path cdsDump;
 
     private Launcher(Path scriptFile) throws NoSuchAlgorithmException, IOException {
         final String javaVersionProperty = System.getProperty("java.vm.specification.version");
@@ -146,6 +169,12 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
         } else {
             localMirror = null;
         }
+        final String mirrorModeEnv = System.getenv("KOTLIN_SCRIPT_MIRROR_MODE");
+        linkFromMirror = mirrorModeEnv != null && mirrorModeEnv.trim().equals("link");
+        final String jarLayoutEnv = System.getenv("KOTLIN_SCRIPT_JAR_LAYOUT");
+        storedJarLayout = jarLayoutEnv != null && jarLayoutEnv.trim().equals("stored");
+        final String classLoaderEnv = System.getenv("KOTLIN_SCRIPT_CLASSLOADER");
+        indexedClassLoader = classLoaderEnv != null && classLoaderEnv.trim().equals("indexed");
 
         final String localRepoEnv = System.getenv("M2_LOCAL_REPO");
         if (localRepoEnv != null && isNotBlank(localRepoEnv)) {
@@ -159,20 +188,84 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
 
         this.md = MessageDigest.getInstance("SHA-256");
         this.scriptFile = scriptFile;
+        this.statCache = new StatCache(cacheDir.resolve("kotlin_script_cache-" +
+                kotlinScriptVersion + ".stat"));
+        this.artifactStamps = new StatCache(localRepo.resolve("org/cikit/kotlin_script_cache/verified.stat"));
+        // script data is only loaded when compilation is needed
+        if (scriptFile != null) {
+            setScriptFileSha256(digest(scriptFile));
+        }
+        this.launchIndex = cacheDir.resolve("index");
+
+        // set by kotlin_script.sh together with -XX:SharedArchiveFile, or with
+        // -XX:ArchiveClassesAtExit=<kotlin_script.cds.dump> when there is no archive yet
+        final String cdsArchiveProperty = System.getProperty("kotlin_script.cds");
+        final String cdsDumpProperty = System.getProperty("kotlin_script.cds.dump");
+        if (cdsArchiveProperty != null && isNotBlank(cdsArchiveProperty)) {
+            cdsArchive = Paths.get(cdsArchiveProperty);
+            if (cdsDumpProperty != null && isNotBlank(cdsDumpProperty)) {
+                cdsDump = Paths.get(cdsDumpProperty);
+                // the archive is keyed by the script path, the jvm does not create parents
+                final Path parent = cdsDump.toAbsolutePath().getParent();
+                try {
+                    Files.createDirectories(parent);
+                } catch (IOException e) {
+                    System.err.println("warning: failed to create " + parent + ": " + e);
+                }
+            } else {
+                cdsDump = null;
+            }
+        } else {
+            cdsArchive = null;
+            cdsDump = null;
+        }
+    }
+
+    private void setScriptFileSha256(byte[] sha256) {
+        this.scriptFileSha256Bytes = sha256;
+        this.scriptFileSha256 = hexString(sha256);
+        this.scriptMetadata = cacheDir.resolve("kotlin_script_cache-" +
+                kotlinScriptVersion + "-sha256=" + scriptFileSha256 + ".metadata");
+    }
+
+    private void loadScriptFileData() throws IOException {
         try (InputStream in = Files.newInputStream(scriptFile)) {
             try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
                 md.reset();
                 copy(in, out, md);
                 out.flush();
                 this.scriptFileData = out.toByteArray();
-                this.scriptFileSha256 = hexDigest(md);
+                setScriptFileSha256(md.digest());
             }
         }
-        this.scriptMetadata = cacheDir.resolve("kotlin_script_cache-" +
-                kotlinScriptVersion + "-sha256=" + scriptFileSha256 + ".metadata");
     }
 
-    private SSLSocketFactory getSocketFactory() throws IOException {
+    private byte[] digest(Path f) throws IOException {
+        final StatCache.Stat stat = StatCache.stat(f);
+        final byte[] cached = statCache.lookup(f, stat);
+        if (cached != null) {
+            return cached;
+        }
+        if (trace) {
+            System.err.println("++ sha256 " + f);
+        }
+        md.reset();
+        try (InputStream in = Files.newInputStream(f)) {
+            final byte[] buffer = new byte[4096];
+            while (true) {
+                int read = in.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                md.update(buffer, 0, read);
+            }
+        }
+        final byte[] sha256 = md.digest();
+        statCache.update(f, stat, sha256);
+        return sha256;
+    }
+
+    private synchronized SSLSocketFactory getSocketFactory() throws IOException {
         if (this._sf == null) {
             try {
                 final SSLContext context = SSLContext.getInstance("TLS");
@@ -219,7 +312,7 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
                         System.err.write((byte) spinner.charAt((offset / 2) % spinner.length()));
                         offset++;
                         final String msg = String.format("   %.2f%%  %s",
-                                ((double) progressDone) / ((double) progressTotal) * 100.0,
+                                ((double) progressDone.get()) / ((double) progressTotal) * 100.0,
                                 progressMsg);
                         System.err.write(msg.getBytes(StandardCharsets.US_ASCII));
                         System.err.flush();
@@ -241,18 +334,14 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
     }
 
     private void copy(InputStream in, OutputStream out, MessageDigest md) throws IOException {
-        final byte[] buffer = new byte[4096];
+        final byte[] buffer = new byte[64 * 1024];
         while (true) {
             int read = in.read(buffer);
             if (read < 0) {
                 break;
             }
-            if (progressTotal > 0L) {
-                synchronized (progressLock) {
-                    progressDone += read;
-                    progressLock.notify();
-                }
-            }
+            // polled by the progress thread
+            progressDone.addAndGet(read);
             md.update(buffer, 0, read);
             out.write(buffer, 0, read);
         }
@@ -276,26 +365,102 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
         if (!Files.isReadable(source)) {
             return false;
         }
-        try (InputStream in = Files.newInputStream(source)) {
-            final Path tmp = createTempFile(target);
-            try {
-                try (OutputStream out = Files.newOutputStream(tmp)) {
-                    if (trace) {
-                        System.err.println("++ cp " + source + " " + target);
-                    }
-                    md.reset();
-                    copy(in, out, md);
+        if (!Arrays.equals(sha256, mappedDigest(source))) {
+            return false;
+        }
+        final Path tmp = createTempFile(target);
+        try {
+            if (linkFromMirror && link(source, tmp)) {
+                if (trace) {
+                    System.err.println("++ ln " + source + " " + target);
                 }
-                final byte[] actualSha256 = md.digest();
-                if (Arrays.equals(sha256, actualSha256)) {
-                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-                    return true;
+            } else {
+                if (trace) {
+                    System.err.println("++ cp " + source + " " + target);
                 }
-            } finally {
-                Files.deleteIfExists(tmp);
+                transfer(source, tmp);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            artifactStamps.stamp(target, StatCache.stat(target), sha256);
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Whether {@code target} is the artifact with the given checksum. A stamp
+     * recorded when the file was verified confirms it with a single stat,
+     * unstamped files are hashed once.
+     */
+    private boolean isVerified(Path target, byte[] sha256, long size) throws IOException {
+        if (!Files.isReadable(target)) {
+            return false;
+        }
+        final StatCache.Stat stat = StatCache.stat(target);
+        if (stat.size != size) {
+            return false;
+        }
+        if (Arrays.equals(sha256, artifactStamps.lookup(target, stat))) {
+            return true;
+        }
+        if (!Arrays.equals(sha256, mappedDigest(target))) {
+            if (trace) {
+                System.err.println("++ checksum mismatch: " + target);
+            }
+            return false;
+        }
+        artifactStamps.stamp(target, stat, sha256);
+        return true;
+    }
+
+    private static byte[] mappedDigest(Path f) throws IOException {
+        final MessageDigest md = newSha256();
+        try (FileChannel ch = FileChannel.open(f, StandardOpenOption.READ)) {
+            final long size = ch.size();
+            long position = 0L;
+            while (position < size) {
+                final long length = Math.min(size - position, 1L << 30);
+                md.update(ch.map(FileChannel.MapMode.READ_ONLY, position, length));
+                position += length;
+            }
+        }
+        return md.digest();
+    }
+
+    private static MessageDigest newSha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static boolean link(Path source, Path tmp) throws IOException {
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createLink(tmp, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. on a different file system
+            return false;
+        }
+    }
+
+    private static void transfer(Path source, Path tmp) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long size = in.size();
+            long position = 0L;
+            while (position < size) {
+                final long n = in.transferTo(position, size - position, out);
+                if (n <= 0) {
+                    throw new EOFException(source + ": unexpected end of file");
+                }
+                position += n;
             }
         }
-        return false;
     }
 
     private long fetch(String sourcePath, Path target, byte[] sha256, long size, boolean dry) throws IOException {
@@ -306,34 +471,131 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
             return size;
         }
         final URL source = new URL(centralRepo + "/" + sourcePath);
-        final Path tmp = createTempFile(target);
+        final Path targetDir = target.toAbsolutePath().getParent();
+        if (targetDir != null && !Files.isDirectory(targetDir)) {
+            Files.createDirectories(targetDir);
+        }
+        // one process fetches into the part file, concurrent processes
+        // wait for the artifact lock and reuse the result
+        final Path lockFile = target.resolveSibling(target.getFileName() + ".lock");
+        final Path tmp = target.resolveSibling(target.getFileName() + ".part");
+        try (FileChannel ch = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FileLock lock = awaitArtifactLock(ch, tmp);
+            try {
+                if (isVerified(target, sha256, size)) {
+                    if (trace) {
+                        System.err.println("++ fetched by concurrent process: " + target);
+                    }
+                    return size;
+                }
+                try {
+                    try (OutputStream out = Files.newOutputStream(tmp)) {
+                        if (trace) {
+                            System.err.println("++ fetch -o " + target + " " + source);
+                        }
+                        final URLConnection cn = source.openConnection();
+                        if (cn instanceof HttpsURLConnection) {
+                            ((HttpsURLConnection) cn).setSSLSocketFactory(getSocketFactory());
+                            ((HttpsURLConnection) cn).setHostnameVerifier(this);
+                        }
+                        try (InputStream in = cn.getInputStream()) {
+                            final MessageDigest md = newSha256();
+                            copy(in, out, md);
+                            final byte[] actualSha256 = md.digest();
+                            if (!Arrays.equals(sha256, actualSha256)) {
+                                final String expected = hexString(sha256);
+                                final String actual = hexString(actualSha256);
+                                throw new RuntimeException(source + ": sha mismatch: " + actual + " != " + expected);
+                            }
+                        }
+                    }
+                    Files.move(tmp, target,
+                            StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    final StatCache.Stat stat = StatCache.stat(target);
+                    artifactStamps.stamp(target, stat, sha256);
+                    return stat.size;
+                } finally {
+                    // while still holding the lock
+                    Files.deleteIfExists(tmp);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private static void fetchAll(List<Callable<Long>> fetches) throws IOException {
+        if (fetches.isEmpty()) {
+            return;
+        }
+        if (fetches.size() == 1) {
+            try {
+                fetches.get(0).call();
+                return;
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(fetches.size(), FETCH_THREADS));
         try {
-            try (OutputStream out = Files.newOutputStream(tmp)) {
-                if (trace) {
-                    System.err.println("++ fetch -o " + target + " " + source);
-                }
-                final URLConnection cn = source.openConnection();
-                if (cn instanceof HttpsURLConnection) {
-                    ((HttpsURLConnection) cn).setSSLSocketFactory(getSocketFactory());
-                    ((HttpsURLConnection) cn).setHostnameVerifier(this);
-                }
-                try (InputStream in = cn.getInputStream()) {
-                    md.reset();
-                    copy(in, out, md);
-                    final byte[] actualSha256 = md.digest();
-                    if (!Arrays.equals(sha256, actualSha256)) {
-                        final String expected = hexString(sha256);
-                        final String actual = hexString(actualSha256);
-                        throw new RuntimeException(source + ": sha mismatch: " + actual + " != " + expected);
+            final List<Future<Long>> results = new ArrayList<>();
+            for (Callable<Long> fetch : fetches) {
+                results.add(executor.submit(fetch));
+            }
+            for (Future<Long> result : results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
                     }
+                    throw new IOException(cause);
                 }
             }
-            Files.move(tmp, target,
-                    StandardCopyOption.ATOMIC_MOVE,
-                    StandardCopyOption.REPLACE_EXISTING);
-            return Files.size(target);
         } finally {
-            Files.deleteIfExists(tmp);
+            executor.shutdownNow();
+        }
+    }
+
+    private FileLock awaitArtifactLock(FileChannel ch, Path part) throws IOException {
+        long seen = 0L;
+        while (true) {
+            try {
+                final FileLock lock = ch.tryLock();
+                if (lock != null) {
+                    return lock;
+                }
+            } catch (OverlappingFileLockException e) {
+                // held by another thread of this process
+            }
+            // report the progress of the other process
+            long size = 0L;
+            try {
+                size = Files.size(part);
+            } catch (IOException e) {
+                // not started yet
+            }
+            if (size > seen) {
+                progressDone.addAndGet(size - seen);
+            }
+            seen = Math.max(seen, size);
+            try {
+                Thread.sleep(100L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
         }
     }
 
@@ -358,19 +620,168 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
         return hexString(md.digest());
     }
 
-    private static String hexDigest(MessageDigest md, Path f) throws IOException {
-        md.reset();
-        try (InputStream in = Files.newInputStream(f)) {
-            final byte[] buffer = new byte[4096];
-            while (true) {
-                int read = in.read(buffer);
-                if (read < 0) {
-                    break;
+    private boolean executeIndexedJar(Path scriptDir, String[] args) throws IOException, ClassNotFoundException,
+            NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        if (trace) {
+            System.err.println("++ read_index " + LaunchIndex.bucket(launchIndex, scriptFileSha256Bytes));
+        }
+        final LaunchIndex.Entry entry = LaunchIndex.find(launchIndex, scriptFileSha256Bytes, javaVersion);
+        if (entry == null) {
+            return false;
+        }
+        for (int i = 0; i < entry.includes.size(); i++) {
+            final byte[] sha256 = digest(scriptDir.resolve(entry.includes.get(i)));
+            if (!Arrays.equals(sha256, entry.includeSha256.get(i))) {
+                return false;
+            }
+        }
+        // a missing lazy dependency needs the package index in the metadata
+        return executeJar(localRepo.resolve(entry.jar), entry.mainClass, entry.classPath,
+                Collections.<LazyClassLoader.Artifact>emptyList(), false, args);
+    }
+
+    private void updateCdsArchive(Path jar, List<String> dependencies, boolean compiled) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("java.home=").append(System.getProperty("java.home")).append("\n");
+        sb.append("java.vm.version=").append(System.getProperty("java.vm.version")).append("\n");
+        sb.append("jar=").append(jar.toAbsolutePath())
+                .append(" ").append(Files.size(jar))
+                .append(" ").append(Files.getLastModifiedTime(jar).toMillis()).append("\n");
+        for (String dependency : dependencies) {
+            sb.append("dep=").append(dependency).append("\n");
+        }
+        final String key = sb.toString();
+        if (cdsDump == null) {
+            final Path keyFile = cdsArchive.resolveSibling(cdsArchive.getFileName() + ".key");
+            String storedKey = null;
+            if (Files.isReadable(keyFile)) {
+                storedKey = new String(Files.readAllBytes(keyFile), StandardCharsets.UTF_8);
+            }
+            if (!key.equals(storedKey)) {
+                // outdated: the next launch dumps a new archive
+                if (trace) {
+                    System.err.println("++ rm -f " + cdsArchive);
                 }
-                md.update(buffer, 0, read);
+                Files.deleteIfExists(keyFile);
+                Files.deleteIfExists(cdsArchive);
+            }
+        } else if (!compiled) {
+            // kotlin_script.sh installs the dumped archive only together with its key, so the
+            // archive of a run that compiled (and would contain the compiler classes) is dropped
+            final Path keyFile = cdsDump.resolveSibling(cdsDump.getFileName() + ".key");
+            if (trace) {
+                System.err.println("++ write " + keyFile);
+            }
+            Files.write(keyFile, key.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Returns false without executing the script if a dependency that is
+     * not in {@code lazy} is missing.
+     */
+    private boolean executeJar(Path jar, String mainClass, List<String> dependencies,
+                               List<LazyClassLoader.Artifact> lazy, boolean compiled, String[] args)
+            throws IOException, ClassNotFoundException, NoSuchMethodException,
+            InvocationTargetException, IllegalAccessException {
+        if (!Files.isReadable(jar)) {
+            throw new RuntimeException("jar not readable: " + jar);
+        }
+
+        // check dependencies
+        final List<URL> classPathUrls = new ArrayList<>();
+        final List<Path> classPathFiles = new ArrayList<>();
+        final List<LazyClassLoader.Artifact> missing = new ArrayList<>();
+        classPathUrls.add(jar.toUri().toURL());
+        classPathFiles.add(jar);
+        for (String dependency : dependencies) {
+            final Path dependencyFile = localRepo.resolve(dependency);
+            if (!Files.isReadable(dependencyFile)) {
+                LazyClassLoader.Artifact artifact = null;
+                for (LazyClassLoader.Artifact a : lazy) {
+                    if (a.subPath.equals(dependency)) {
+                        artifact = a;
+                        break;
+                    }
+                }
+                if (artifact == null) {
+                    if (trace) {
+                        System.err.println("++ dependency not readable: " + dependency);
+                    }
+                    return false;
+                }
+                missing.add(artifact);
+                continue;
+            }
+            classPathUrls.add(dependencyFile.toUri().toURL());
+            classPathFiles.add(dependencyFile);
+        }
+        final URL[] classPath = classPathUrls.toArray(new URL[0]);
+
+        if (cdsArchive != null) {
+            try {
+                updateCdsArchive(jar, dependencies, compiled);
+            } catch (IOException e) {
+                System.err.println("warning: failed to update " + cdsArchive + ": " + e);
             }
-            return hexDigest(md);
         }
+
+        if (trace) {
+            System.err.println("++ " + mainClass + ".main(" + Arrays.toString(args) + ")");
+        }
+        ClassLoader cl = null;
+        final JarLayout.Recorder recorder;
+        if (!missing.isEmpty()) {
+            cl = new LazyClassLoader(classPath, missing, new LazyClassLoader.Fetcher() {
+                @Override
+                public Path fetch(LazyClassLoader.Artifact artifact) throws IOException {
+                    final Path target = localRepo.resolve(artifact.subPath);
+                    Launcher.this.fetch(artifact.subPath, target, artifact.sha256, artifact.size, false);
+                    return target;
+                }
+            }, Launcher.class.getClassLoader());
+            recorder = null;
+        } else if (storedJarLayout && scriptFile != null &&
+                !JarLayout.isRecorded(JarLayout.orderFile(cacheDir, scriptFile), jar)) {
+            // first run: record the load order for the next compilation
+            final JarLayout.RecordingClassLoader rcl = new JarLayout.RecordingClassLoader(
+                    classPath, Launcher.class.getClassLoader());
+            cl = rcl;
+            recorder = new JarLayout.Recorder(JarLayout.orderFile(cacheDir, scriptFile), jar, rcl, trace);
+        } else {
+            if (indexedClassLoader) {
+                try {
+                    cl = new IndexedClassLoader(classPathFiles, IndexedClassLoader.indexFile(jar), trace,
+                            Launcher.class.getClassLoader());
+                } catch (IOException e) {
+                    System.err.println("warning: falling back to URLClassLoader: " + e);
+                }
+            }
+            if (cl == null) {
+                cl = new URLClassLoader(classPath, Launcher.class.getClassLoader());
+            }
+            recorder = null;
+        }
+        Thread.currentThread().setContextClassLoader(cl);
+        final Class<?> clazz = cl.loadClass(mainClass);
+        final Method mainMethod = clazz.getMethod("main", String[].class);
+        if (recorder == null) {
+            mainMethod.invoke(null, (Object) args);
+            return true;
+        }
+        final Thread hook = new Thread(recorder);
+        Runtime.getRuntime().addShutdownHook(hook);
+        try {
+            mainMethod.invoke(null, (Object) args);
+        } finally {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // shutting down
+            }
+            recorder.run();
+        }
+        return true;
     }
 
     private void executeCachedJar(Path compiledJar, String[] args) throws IOException, ClassNotFoundException,
@@ -382,12 +793,17 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
             scriptDir = scriptFile.getParent();
         }
 
+        if (compiledJar == null && executeIndexedJar(scriptDir, args)) {
+            return;
+        }
+
         // read metadata
         if (trace) {
             System.err.println("++ read_metadata " + scriptMetadata);
         }
         final List<String> dependencies = new ArrayList<>();
         final List<String> includes = new ArrayList<>();
+        final List<LazyClassLoader.Artifact> lazy = new ArrayList<>();
         String mainClass = null;
         try (BufferedReader reader = Files.newBufferedReader(scriptMetadata)) {
             while (true) {
@@ -399,6 +815,8 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
                     dependencies.add(line.substring(8));
                 } else if (line.startsWith("///DEP=")) {
                     dependencies.add(line.substring(7));
+                } else if (line.startsWith("///LAZY=")) {
+                    lazy.add(LazyClassLoader.Artifact.parse(line.substring(8)));
                 } else if (line.startsWith("///INC=")) {
                     includes.add(line.substring(7));
                 } else if (line.startsWith("///MAIN=")) {
@@ -433,17 +851,6 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
             }
         }
 
-        // check dependencies
-        final URL[] classPath = new URL[dependencies.size() + 1];
-        int i = 1;
-        for (String dependency : dependencies) {
-            final Path dependencyFile = localRepo.resolve(dependency);
-            if (!Files.isReadable(dependencyFile)) {
-                throw new RuntimeException("dependency not readable: " + dependency);
-            }
-            classPath[i++] = dependencyFile.toUri().toURL();
-        }
-
         final Path jarToExecute;
 
         if (compiledJar == null) {
@@ -456,7 +863,7 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
                 sb.append("sha256=").append(scriptFileSha256).append(" ")
                         .append(scriptFile.getFileName().toString());
                 for (String inc : includes) {
-                    final String sha256 = hexDigest(md, scriptDir.resolve(inc));
+                    final String sha256 = hexString(digest(scriptDir.resolve(inc)));
                     sb.append("\nsha256=").append(sha256).append(" ").append(inc);
                 }
                 sb.append("\n");
@@ -497,19 +904,51 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
             jarToExecute = compiledJar;
         }
 
+        if (!executeJar(jarToExecute, mainClass, dependencies, lazy, compiledJar != null, args)) {
+            throw new RuntimeException("dependency not readable");
+        }
+    }
+
+    private Path executeCompiler() throws IOException, ClassNotFoundException,
+            NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        final URL[] classPath = bootstrapClassPath();
+
+        loadScriptFileData();
+
         if (trace) {
-            System.err.println("++ " + mainClass + ".main(" + Arrays.toString(args) + ")");
+            System.err.println("++ compileScript " +
+                    scriptFile + " byte[" +
+                    scriptFileData.length + "] " +
+                    scriptFileSha256 + " " +
+                    scriptMetadata);
         }
-        classPath[0] = jarToExecute.toUri().toURL();
+
         final URLClassLoader cl = new URLClassLoader(classPath, Launcher.class.getClassLoader());
         Thread.currentThread().setContextClassLoader(cl);
-        final Class<?> clazz = cl.loadClass(mainClass);
-        final Method mainMethod = clazz.getMethod("main", String[].class);
-        mainMethod.invoke(null, (Object) args);
+        final Class<?> clazz = cl.loadClass("kotlin_script.KotlinScript");
+        final Method compileScriptMethod = clazz.getMethod(
+                "compileScript",
+                Path.class,   //            scriptFile: Path,
+                byte[].class, //            scriptData: ByteArray,
+                String.class, //            scriptFileSha256: String,
+                Path.class    //            scriptMetadata: Path
+        );
+        return (Path) compileScriptMethod.invoke(null, scriptFile, scriptFileData, scriptFileSha256, scriptMetadata);
     }
 
-    private Path executeCompiler() throws IOException, ClassNotFoundException,
+    private void serveRepo(String address) throws IOException, ClassNotFoundException,
             NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        final URLClassLoader cl = new URLClassLoader(bootstrapClassPath(), Launcher.class.getClassLoader());
+        Thread.currentThread().setContextClassLoader(cl);
+        final Class<?> clazz = cl.loadClass("kotlin_script.KotlinScript");
+        clazz.getMethod("serveRepo", String.class).invoke(null, address);
+    }
+
+    /**
+     * Fetches the kotlin_script class path (compiler and resolver) if
+     * necessary.
+     */
+    private URL[] bootstrapClassPath() throws IOException {
         boolean skipJna = false;
         try {
             skipJna = System.getenv("KOTLIN_SCRIPT_JNA") == null && Integer.parseInt(javaVersion) >= 22;
@@ -518,6 +957,7 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
         }
 
         progressTotal = 0L;
+        progressDone.set(0L);
         int classPathSize = 0;
         for (int i = 0; i < dependencies.length; i++) {
             final String relPath = dependencies[i];
@@ -535,7 +975,7 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
                 final byte[] sha256 = checksums[i];
                 final long size = sizes[i];
                 final Path targetPath = localRepo.resolve(relPath);
-                if (!Files.isReadable(targetPath)) {
+                if (!isVerified(targetPath, sha256, size)) {
                     progressTotal += fetch(relPath, targetPath, sha256, size, true);
                 }
             }
@@ -549,6 +989,7 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
         final URL[] classPath = new URL[classPathSize];
         classPathSize = 0;
         try {
+            final List<Callable<Long>> fetches = new ArrayList<>();
             for (int i = 0; i < dependencies.length; i++) {
                 final String relPath = dependencies[i];
                 if (skipJna) {
@@ -563,11 +1004,17 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
                 final byte[] sha256 = checksums[i];
                 final long size = sizes[i];
                 final Path targetPath = localRepo.resolve(relPath);
-                if (!Files.isReadable(targetPath)) {
-                    fetch(relPath, targetPath, sha256, size, false);
+                if (!isVerified(targetPath, sha256, size)) {
+                    fetches.add(new Callable<Long>() {
+                        @Override
+                        public Long call() throws IOException {
+                            return fetch(relPath, targetPath, sha256, size, false);
+                        }
+                    });
                 }
                 classPath[classPathSize++] = targetPath.toUri().toURL();
             }
+            fetchAll(fetches);
         } finally {
             if (progressTotal > 0L) {
                 synchronized (progressLock) {
@@ -577,26 +1024,7 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
                 progressTotal = 0L;
             }
         }
-
-        if (trace) {
-            System.err.println("++ compileScript " +
-                    scriptFile + " byte[" +
-                    scriptFileData.length + "] " +
-                    scriptFileSha256 + " " +
-                    scriptMetadata);
-        }
-
-        final URLClassLoader cl = new URLClassLoader(classPath, Launcher.class.getClassLoader());
-        Thread.currentThread().setContextClassLoader(cl);
-        final Class<?> clazz = cl.loadClass("kotlin_script.KotlinScript");
-        final Method compileScriptMethod = clazz.getMethod(
-                "compileScript",
-                Path.class,   //            scriptFile: Path,
-                byte[].class, //            scriptData: ByteArray,
-                String.class, //            scriptFileSha256: String,
-                Path.class    //            scriptMetadata: Path
-        );
-        return (Path) compileScriptMethod.invoke(null, scriptFile, scriptFileData, scriptFileSha256, scriptMetadata);
+        return classPath;
     }
 
     public static void main(String[] args) throws IOException, NoSuchAlgorithmException, KeyManagementException, InvocationTargetException {
@@ -605,6 +1033,22 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
             System.exit(2);
         }
 
+        if (args[0].equals("--daemon") && args.length == 3) {
+            Daemon.serve(Paths.get(args[1]), args[2]);
+            return;
+        }
+
+        if (args[0].equals("--serve-repo") && args.length == 2) {
+            final String scriptFlags = System.getenv("KOTLIN_SCRIPT_FLAGS");
+            System.setProperty("kotlin_script.flags", scriptFlags == null ? "" : scriptFlags);
+            try {
+                new Launcher(null).serveRepo(args[1]);
+            } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
         final String scriptName = args[0];
         final String scriptFlags = System.getenv("KOTLIN_SCRIPT_FLAGS");
         System.setProperty("kotlin_script.name", scriptName);
@@ -615,6 +1059,7 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
         }
 
         final Launcher launcher = new Launcher(Paths.get(scriptName));
+        Path actualLauncherPath = null;
         final Path expectedLauncherPath = launcher.localRepo.resolve(
                 "org/cikit/kotlin_script/" + launcher.kotlinScriptVersion +
                         "/kotlin_script-" + launcher.kotlinScriptVersion + ".sh");
@@ -628,7 +1073,7 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
             } else {
                 launcherJarFileUrl = launcherJarFileUrl1.substring(0, i);
             }
-            Path actualLauncherPath = Paths.get(URI.create(launcherJarFileUrl));
+            actualLauncherPath = Paths.get(URI.create(launcherJarFileUrl));
             if (!Files.exists(expectedLauncherPath) || !Files.isSameFile(expectedLauncherPath, actualLauncherPath)) {
                 final Path targetDir = expectedLauncherPath.getParent();
                 if (targetDir != null && !Files.isDirectory(targetDir)) {
@@ -640,9 +1085,38 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
         final String[] scriptArgs = new String[args.length - 1];
         System.arraycopy(args, 1, scriptArgs, 0, args.length - 1);
 
-        if (!launcher.force) {
+        final String daemonEnv = System.getenv("KOTLIN_SCRIPT_DAEMON");
+        if (daemonEnv != null && isNotBlank(daemonEnv) && actualLauncherPath != null &&
+                !launcher.force && Daemon.isSupported(launcher.javaVersion)) {
+            final Daemon daemon = new Daemon(launcher.cacheDir.resolve("daemon"),
+                    launcher.kotlinScriptVersion, launcher.trace);
+            final Integer rc = daemon.runClient(actualLauncherPath, launcher.javaVersion,
+                    System.getProperty("kotlin_script.flags"), args);
+            if (rc != null) {
+                System.exit(rc);
+            }
+        }
+
+        launcher.execute(scriptArgs);
+    }
+
+    /**
+     * Entry point for scripts executed by a {@link Daemon} session. The
+     * {@code kotlin_script.name} and {@code kotlin_script.flags} properties
+     * are answered by the session.
+     */
+    static void runScript(String[] args) throws IOException, NoSuchAlgorithmException, KeyManagementException,
+            InvocationTargetException {
+        final Launcher launcher = new Launcher(Paths.get(args[0]));
+        final String[] scriptArgs = new String[args.length - 1];
+        System.arraycopy(args, 1, scriptArgs, 0, args.length - 1);
+        launcher.execute(scriptArgs);
+    }
+
+    private void execute(String[] scriptArgs) throws InvocationTargetException {
+        if (!force) {
             try {
-                launcher.executeCachedJar(null, scriptArgs);
+                executeCachedJar(null, scriptArgs);
                 return;
             } catch (InvocationTargetException e) {
                 final Throwable cause = e.getCause();
@@ -661,7 +1135,7 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
         final Path targetJar;
 
         try {
-            targetJar = launcher.executeCompiler();
+            targetJar = executeCompiler();
         } catch (InvocationTargetException e) {
             final Throwable cause = e.getCause();
             if (cause == null) {
@@ -678,7 +1152,7 @@ public class Launcher implements X509TrustManager, HostnameVerifier, Runnable {
         }
 
         try {
-            launcher.executeCachedJar(targetJar, scriptArgs);
+            executeCachedJar(targetJar, scriptArgs);
         } catch (InvocationTargetException e) {
             final Throwable cause = e.getCause();
             if (cause == null) {
@@ -0,0 +1,151 @@
+package kotlin_script;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class loader for scripts compiled with {@code KOTLIN_SCRIPT_LAZY_RDEP}.
+ *
+ * Runtime dependencies missing in the local repository are left out of the
+ * class path. Their package index ({@code ///LAZY=} lines in the metadata)
+ * tells which of them can contain a class or resource that was not found,
+ * and those are fetched, verified and appended to the class path before
+ * the lookup is retried. Service files are indexed by their full name.
+ */
+final class LazyClassLoader extends URLClassLoader {
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    static final class Artifact {
+        final String subPath;
+        final byte[] sha256;
+        final long size;
+        final String[] packages;
+        private boolean fetched;
+
+        private Artifact(String subPath, byte[] sha256, long size, String[] packages) {
+            this.subPath = subPath;
+            this.sha256 = sha256;
+            this.size = size;
+            this.packages = packages;
+        }
+
+        /**
+         * Parses {@code <subPath> sha256=<hex> <size> <package>,...}.
+         */
+        static Artifact parse(String spec) {
+            final String[] parts = spec.trim().split(" ");
+            if (parts.length < 3 || !parts[1].startsWith("sha256=") || parts[1].length() != 7 + 64) {
+                throw new IllegalArgumentException("invalid lazy dependency: " + spec);
+            }
+            final byte[] sha256 = new byte[32];
+            for (int i = 0; i < sha256.length; i++) {
+                sha256[i] = (byte) Integer.parseInt(parts[1].substring(7 + i * 2, 9 + i * 2), 16);
+            }
+            final String[] packages = parts.length > 3 ? parts[3].split(",") : new String[0];
+            return new Artifact(parts[0], sha256, Long.parseLong(parts[2]), packages);
+        }
+    }
+
+    interface Fetcher {
+        Path fetch(Artifact artifact) throws IOException;
+    }
+
+    private final Map<String, List<Artifact>> packages = new HashMap<>();
+    private final Fetcher fetcher;
+
+    LazyClassLoader(URL[] urls, List<Artifact> missing, Fetcher fetcher, ClassLoader parent) {
+        super(urls, parent);
+        this.fetcher = fetcher;
+        for (Artifact artifact : missing) {
+            for (String p : artifact.packages) {
+                final String dir = p.equals(".") ? "" : p;
+                List<Artifact> list = packages.get(dir);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    packages.put(dir, list);
+                }
+                list.add(artifact);
+            }
+        }
+    }
+
+    private static final String SERVICES = "META-INF/services/";
+
+    private static String directoryOf(String name) {
+        final int i = name.lastIndexOf('/', name.length() - 2);
+        return i < 0 ? "" : name.substring(0, i);
+    }
+
+    /**
+     * Fetches the missing artifacts that can contain {@code name}, returns
+     * whether the lookup has to be retried. That is also the case when they
+     * were fetched by another thread after the lookup missed.
+     */
+    private boolean fetchFor(String name) throws IOException {
+        final List<Artifact> candidates = packages.get(name.startsWith(SERVICES) ? name : directoryOf(name));
+        if (candidates == null) {
+            return false;
+        }
+        synchronized (packages) {
+            for (Artifact artifact : candidates) {
+                if (artifact.fetched) {
+                    continue;
+                }
+                final Path f = fetcher.fetch(artifact);
+                addURL(f.toUri().toURL());
+                artifact.fetched = true;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        try {
+            return super.findClass(name);
+        } catch (ClassNotFoundException e) {
+            try {
+                if (!fetchFor(name.replace('.', '/') + ".class")) {
+                    throw e;
+                }
+            } catch (IOException ex) {
+                throw new ClassNotFoundException(name, ex);
+            }
+            return super.findClass(name);
+        }
+    }
+
+    @Override
+    public URL findResource(String name) {
+        final URL url = super.findResource(name);
+        if (url != null) {
+            return url;
+        }
+        try {
+            if (!fetchFor(name)) {
+                return null;
+            }
+        } catch (IOException e) {
+            System.err.println("warning: failed to fetch dependency for " + name + ": " + e);
+            return null;
+        }
+        return super.findResource(name);
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        // all jars with the package may contribute
+        fetchFor(name);
+        return super.findResources(name);
+    }
+}
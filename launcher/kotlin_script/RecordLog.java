@@ -0,0 +1,196 @@
+package kotlin_script;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary append-only record file shared between concurrent processes.
+ * Same format as {@code RecordLog.kt}: {@code magic:int version:int}
+ * followed by {@code length:int payload:byte[length] crc32:int} records.
+ */
+final class RecordLog {
+
+    private static final int VERSION = 1;
+    private static final int COMPACT_MIN_RECORDS = 64;
+
+    private final Path file;
+    private final int magic;
+    private long validSize;
+
+    RecordLog(Path file, int magic) {
+        this.file = file;
+        this.magic = magic;
+    }
+
+    List<ByteBuffer> read() throws IOException {
+        final ByteBuffer buffer;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0L, ch.size());
+        } catch (NoSuchFileException e) {
+            validSize = 0L;
+            return new ArrayList<>();
+        }
+        return parse(buffer);
+    }
+
+    interface KeyFunction {
+        Object keyOf(ByteBuffer record);
+    }
+
+    void append(byte[] record, KeyFunction keyFunction) throws IOException {
+        final Path parent = file.getParent();
+        if (parent != null && !Files.isDirectory(parent)) {
+            Files.createDirectories(parent);
+        }
+        final Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        try (FileChannel lockChannel = FileChannel.open(lockFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock;
+            while (true) {
+                try {
+                    lock = lockChannel.lock();
+                    break;
+                } catch (OverlappingFileLockException e) {
+                    // held by another thread of this jvm
+                    try {
+                        Thread.sleep(10L);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(ie);
+                    }
+                }
+            }
+            try {
+                final List<ByteBuffer> records = read();
+                final Object newKey = keyFunction.keyOf(ByteBuffer.wrap(record));
+                final Map<Object, ByteBuffer> live = new LinkedHashMap<>();
+                for (ByteBuffer r : records) {
+                    live.put(keyFunction.keyOf(r.duplicate()), r);
+                }
+                live.remove(newKey);
+                if (records.size() >= COMPACT_MIN_RECORDS && records.size() - live.size() > live.size()) {
+                    final List<ByteBuffer> compacted = new ArrayList<>(live.values());
+                    compacted.add(ByteBuffer.wrap(record));
+                    rewrite(compacted);
+                } else {
+                    try (FileChannel ch = FileChannel.open(file,
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                        // drop a torn tail left behind by a crashed writer
+                        if (validSize == 0L) {
+                            ch.truncate(0L);
+                            writeFully(ch, header());
+                        } else {
+                            ch.truncate(validSize);
+                            ch.position(validSize);
+                        }
+                        writeFully(ch, frame(ByteBuffer.wrap(record)));
+                        ch.force(false);
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private void rewrite(List<ByteBuffer> records) throws IOException {
+        final Path tmp = Files.createTempFile(file.getParent(), file.getFileName() + "~", "");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                writeFully(ch, header());
+                for (ByteBuffer r : records) {
+                    writeFully(ch, frame(r.duplicate()));
+                }
+                ch.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private ByteBuffer header() {
+        final ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(magic);
+        header.putInt(VERSION);
+        ((Buffer) header).flip();
+        return header;
+    }
+
+    private static ByteBuffer frame(ByteBuffer payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        final ByteBuffer result = ByteBuffer.allocate(payload.remaining() + 8);
+        result.putInt(payload.remaining());
+        result.put(payload);
+        result.putInt((int) crc.getValue());
+        ((Buffer) result).flip();
+        return result;
+    }
+
+    private List<ByteBuffer> parse(ByteBuffer buffer) {
+        final List<ByteBuffer> result = new ArrayList<>();
+        if (buffer.remaining() < 8 || buffer.getInt(0) != magic || buffer.getInt(4) != VERSION) {
+            validSize = 0L;
+            return result;
+        }
+        int pos = 8;
+        final int limit = buffer.limit();
+        while (pos + 8 <= limit) {
+            final int length = buffer.getInt(pos);
+            if (length < 0 || length > limit - pos - 8) {
+                break;
+            }
+            final ByteBuffer payload = buffer.duplicate();
+            // cast for jdk 8 compatibility of the compiled class
+            ((Buffer) payload).position(pos + 4);
+            ((Buffer) payload).limit(pos + 4 + length);
+            final CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(pos + 4 + length)) {
+                break;
+            }
+            result.add(payload.slice());
+            pos += length + 8;
+        }
+        validSize = pos;
+        return result;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            ch.write(buffer);
+        }
+    }
+
+    static String getString(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void putString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("string too long: " + value);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
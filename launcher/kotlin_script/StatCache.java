@@ -0,0 +1,154 @@
+package kotlin_script;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps (path, device, inode, size, mtime, ctime) to the last computed
+ * sha256 of a file, so unchanged scripts and includes are neither read
+ * nor hashed on a warm start.
+ */
+final class StatCache {
+
+    // "KSSC"
+    private static final int MAGIC = 0x4b535343;
+
+    // same rule as git's racy index entries: a file modified within this
+    // interval may still change without changing its timestamps
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2L);
+
+    static final class Stat {
+        final long dev;
+        final long ino;
+        final long size;
+        final long mtime;
+        final long ctime;
+
+        private Stat(long dev, long ino, long size, long mtime, long ctime) {
+            this.dev = dev;
+            this.ino = ino;
+            this.size = size;
+            this.mtime = mtime;
+            this.ctime = ctime;
+        }
+
+        boolean isRacy() {
+            final long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+            return now - mtime < RACY_NANOS || now - ctime < RACY_NANOS;
+        }
+    }
+
+    private final RecordLog log;
+    private Map<String, ByteBuffer> records;
+
+    StatCache(Path file) {
+        this.log = new RecordLog(file, MAGIC);
+    }
+
+    static Stat stat(Path file) throws IOException {
+        try {
+            final Map<String, Object> attrs = Files.readAttributes(file, "unix:dev,ino,size,lastModifiedTime,ctime");
+            return new Stat(
+                    ((Number) attrs.get("dev")).longValue(),
+                    ((Number) attrs.get("ino")).longValue(),
+                    ((Number) attrs.get("size")).longValue(),
+                    ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                    ((FileTime) attrs.get("ctime")).to(TimeUnit.NANOSECONDS));
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            final Object fileKey = attrs.fileKey();
+            return new Stat(
+                    0L,
+                    fileKey == null ? 0L : fileKey.hashCode(),
+                    attrs.size(),
+                    attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    attrs.creationTime().to(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private static String keyOf(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Returns the cached sha256 of {@code file} if its stat data still
+     * matches, {@code null} otherwise.
+     */
+    synchronized byte[] lookup(Path file, Stat stat) {
+        try {
+            if (records == null) {
+                final Map<String, ByteBuffer> map = new HashMap<>();
+                for (ByteBuffer r : log.read()) {
+                    final ByteBuffer record = r.duplicate();
+                    map.put(RecordLog.getString(record), record);
+                }
+                records = map;
+            }
+        } catch (IOException e) {
+            records = new HashMap<>();
+        }
+        final ByteBuffer match = records.get(keyOf(file));
+        if (match == null) {
+            return null;
+        }
+        final ByteBuffer record = match.duplicate();
+        if (record.getLong() != stat.dev ||
+                record.getLong() != stat.ino ||
+                record.getLong() != stat.size ||
+                record.getLong() != stat.mtime ||
+                record.getLong() != stat.ctime) {
+            return null;
+        }
+        final byte[] sha256 = new byte[32];
+        record.get(sha256);
+        return sha256;
+    }
+
+    synchronized void update(Path file, Stat stat, byte[] sha256) {
+        if (stat.isRacy()) {
+            return;
+        }
+        stamp(file, stat, sha256);
+    }
+
+    /**
+     * Records the verified sha256 of an artifact. Unlike script files,
+     * recent timestamps are not racy here: artifacts are replaced by atomic
+     * moves, never modified in place.
+     */
+    synchronized void stamp(Path file, Stat stat, byte[] sha256) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                RecordLog.putString(out, keyOf(file));
+                out.writeLong(stat.dev);
+                out.writeLong(stat.ino);
+                out.writeLong(stat.size);
+                out.writeLong(stat.mtime);
+                out.writeLong(stat.ctime);
+                out.write(sha256);
+            }
+            log.append(bytes.toByteArray(), new RecordLog.KeyFunction() {
+                @Override
+                public Object keyOf(ByteBuffer record) {
+                    return RecordLog.getString(record);
+                }
+            });
+            if (records != null) {
+                final ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+                records.put(RecordLog.getString(record), record);
+            }
+        } catch (IOException e) {
+            // cache is optional
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package kotlin_script
+
+import java.io.DataInputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+/**
+ * Minimal class file reader: just enough to tell which source a class was
+ * compiled from, which classes it references and whether its ABI changed.
+ */
+internal class ClassFile private constructor(
+    val name: String,
+    val superName: String?,
+    val interfaces: List<String>,
+    val sourceFile: String?,
+    val sourceDebugExtension: String?,
+    val referencedClasses: Set<String>,
+    val stringConstants: List<String>,
+    val abiHash: String,
+    val constantsHash: String,
+) {
+    companion object {
+        private const val MAGIC = 0xCAFEBABE.toInt()
+
+        private const val ACC_PRIVATE = 0x0002
+        private const val ACC_SYNTHETIC = 0x1000
+
+        private const val CONSTANT_UTF8 = 1
+        private const val CONSTANT_INTEGER = 3
+        private const val CONSTANT_FLOAT = 4
+        private const val CONSTANT_LONG = 5
+        private const val CONSTANT_DOUBLE = 6
+        private const val CONSTANT_CLASS = 7
+        private const val CONSTANT_STRING = 8
+        private const val CONSTANT_FIELDREF = 9
+        private const val CONSTANT_METHODREF = 10
+        private const val CONSTANT_INTERFACE_METHODREF = 11
+        private const val CONSTANT_NAME_AND_TYPE = 12
+        private const val CONSTANT_METHOD_HANDLE = 15
+        private const val CONSTANT_METHOD_TYPE = 16
+        private const val CONSTANT_DYNAMIC = 17
+        private const val CONSTANT_INVOKE_DYNAMIC = 18
+        private const val CONSTANT_MODULE = 19
+        private const val CONSTANT_PACKAGE = 20
+
+        fun parse(data: ByteArray): ClassFile {
+            val `in` = DataInputStream(data.inputStream())
+            if (`in`.readInt() != MAGIC) {
+                throw IOException("not a class file")
+            }
+            `in`.readUnsignedShort() // minor
+            `in`.readUnsignedShort() // major
+
+            val count = `in`.readUnsignedShort()
+            val tags = IntArray(count)
+            val utf8 = arrayOfNulls<String>(count)
+            val refs = IntArray(count)
+            val numbers = arrayOfNulls<Number>(count)
+            val descriptors = mutableListOf<Int>()
+            val strings = mutableListOf<Int>()
+            var i = 1
+            while (i < count) {
+                val tag = `in`.readUnsignedByte()
+                tags[i] = tag
+                when (tag) {
+                    CONSTANT_UTF8 -> utf8[i] = `in`.readUTF()
+                    CONSTANT_CLASS, CONSTANT_MODULE, CONSTANT_PACKAGE ->
+                        refs[i] = `in`.readUnsignedShort()
+                    CONSTANT_STRING -> {
+                        refs[i] = `in`.readUnsignedShort()
+                        strings += refs[i]
+                    }
+                    CONSTANT_METHOD_TYPE ->
+                        descriptors += `in`.readUnsignedShort()
+                    CONSTANT_NAME_AND_TYPE -> {
+                        `in`.readUnsignedShort()
+                        descriptors += `in`.readUnsignedShort()
+                    }
+                    CONSTANT_INTEGER, CONSTANT_FLOAT ->
+                        numbers[i] = `in`.readInt()
+                    CONSTANT_FIELDREF, CONSTANT_METHODREF,
+                    CONSTANT_INTERFACE_METHODREF,
+                    CONSTANT_DYNAMIC, CONSTANT_INVOKE_DYNAMIC ->
+                        `in`.readInt()
+                    CONSTANT_LONG, CONSTANT_DOUBLE -> {
+                        numbers[i] = `in`.readLong()
+                        i++
+                    }
+                    CONSTANT_METHOD_HANDLE -> {
+                        `in`.readUnsignedByte()
+                        `in`.readUnsignedShort()
+                    }
+                    else -> throw IOException("invalid constant pool tag $tag")
+                }
+                i++
+            }
+
+            fun className(index: Int): String? =
+                if (index == 0) null else utf8[refs[index]]
+
+            val abi = MessageDigest.getInstance("SHA-256")
+            fun abiUpdate(vararg values: Any?) {
+                values.forEach { v ->
+                    abi.update(v.toString().encodeToByteArray())
+                    abi.update(0)
+                }
+            }
+
+            // constants are inlined into callers, without a reference
+            // to the declaring class
+            val constants = MessageDigest.getInstance("SHA-256")
+
+            val access = `in`.readUnsignedShort()
+            val name = className(`in`.readUnsignedShort())
+                ?: throw IOException("missing this_class")
+            val superName = className(`in`.readUnsignedShort())
+            val interfaces = List(`in`.readUnsignedShort()) {
+                className(`in`.readUnsignedShort())!!
+            }
+            abiUpdate(access, name, superName, interfaces)
+
+            // only named by utf8 constants, not by the class entries
+            val annotationClasses = mutableSetOf<String>()
+            fun annotations(attribute: ByteArray, parameters: Boolean, hash: Boolean) {
+                val b = ByteBuffer.wrap(attribute)
+                fun u2() = b.short.toInt() and 0xFFFF
+                fun update(vararg values: Any?) {
+                    if (hash) {
+                        abiUpdate(*values)
+                    }
+                }
+                fun type(): String {
+                    val type = utf8[u2()]!!
+                    annotationClasses += descriptorClasses(type)
+                    return type
+                }
+                fun elementValue() {
+                    val tag = b.get().toInt().toChar()
+                    update(tag)
+                    when (tag) {
+                        'e' -> update(type(), utf8[u2()])
+                        'c' -> update(type())
+                        '@' -> {
+                            update(type())
+                            repeat(u2()) {
+                                update(utf8[u2()])
+                                elementValue()
+                            }
+                        }
+                        '[' -> repeat(u2()) { elementValue() }
+                        's' -> update(utf8[u2()])
+                        else -> update(numbers[u2()])
+                    }
+                }
+                repeat(if (parameters) b.get().toInt() and 0xFF else 1) {
+                    repeat(u2()) {
+                        update(type())
+                        repeat(u2()) {
+                            update(utf8[u2()])
+                            elementValue()
+                        }
+                    }
+                }
+            }
+            fun collectClasses(attributeName: String?, attribute: ByteArray) {
+                when (attributeName) {
+                    "RuntimeVisibleAnnotations", "RuntimeInvisibleAnnotations" ->
+                        annotations(attribute, parameters = false, hash = false)
+                    "RuntimeVisibleParameterAnnotations", "RuntimeInvisibleParameterAnnotations" ->
+                        annotations(attribute, parameters = true, hash = false)
+                    "Signature" -> annotationClasses += signatureClasses(utf8[attribute.u2(0)]!!)
+                }
+            }
+
+            val memberDescriptors = mutableListOf<String>()
+            repeat(2) { kind ->
+                repeat(`in`.readUnsignedShort()) {
+                    val memberAccess = `in`.readUnsignedShort()
+                    val memberName = utf8[`in`.readUnsignedShort()]
+                    val descriptor = utf8[`in`.readUnsignedShort()]!!
+                    memberDescriptors += descriptor
+                    val visible = memberAccess and ACC_PRIVATE == 0 &&
+                            memberAccess and ACC_SYNTHETIC == 0
+                    if (visible) {
+                        abiUpdate(kind, memberAccess, memberName, descriptor)
+                    }
+                    repeat(`in`.readUnsignedShort()) {
+                        val attributeName = utf8[`in`.readUnsignedShort()]
+                        val attribute = ByteArray(`in`.readInt())
+                        `in`.readFully(attribute)
+                        if (visible && attributeName == "ConstantValue") {
+                            val index = attribute.u2(0)
+                            val value = numbers[index] ?: utf8[refs[index]]
+                            abiUpdate(value)
+                            constants.update("$memberName=$value".encodeToByteArray())
+                            constants.update(0)
+                        } else {
+                            collectClasses(attributeName, attribute)
+                        }
+                    }
+                }
+            }
+
+            var sourceFile: String? = null
+            var sourceDebugExtension: String? = null
+            repeat(`in`.readUnsignedShort()) {
+                val attributeName = utf8[`in`.readUnsignedShort()]
+                val attribute = ByteArray(`in`.readInt())
+                `in`.readFully(attribute)
+                when (attributeName) {
+                    "SourceFile" -> {
+                        sourceFile = utf8[attribute.u2(0)]
+                    }
+                    "SourceDebugExtension" ->
+                        sourceDebugExtension = String(attribute, Charsets.UTF_8)
+                    // attributes refer to the constant pool, whose indices
+                    // shift with any change to the class, so hash values
+                    "RuntimeVisibleAnnotations" ->
+                        // includes the kotlin.Metadata of the class
+                        annotations(attribute, parameters = false, hash = true)
+                    "Signature" -> {
+                        abiUpdate(utf8[attribute.u2(0)])
+                        collectClasses(attributeName, attribute)
+                    }
+                    "InnerClasses" -> {
+                        for (offset in 2 until attribute.size step 8) {
+                            abiUpdate(
+                                className(attribute.u2(offset)),
+                                className(attribute.u2(offset + 2)),
+                                utf8[attribute.u2(offset + 4)],
+                                attribute.u2(offset + 6)
+                            )
+                        }
+                    }
+                    "PermittedSubclasses" -> {
+                        for (offset in 2 until attribute.size step 2) {
+                            abiUpdate(className(attribute.u2(offset)))
+                        }
+                    }
+                    else -> collectClasses(attributeName, attribute)
+                }
+            }
+
+            val referencedClasses = mutableSetOf<String>()
+            for (index in 1 until count) {
+                if (tags[index] == CONSTANT_CLASS) {
+                    val ref = utf8[refs[index]] ?: continue
+                    if (ref.startsWith("[")) {
+                        referencedClasses += descriptorClasses(ref)
+                    } else {
+                        referencedClasses += ref
+                    }
+                }
+            }
+            (descriptors.mapNotNull { index -> utf8[index] } + memberDescriptors)
+                .forEach { descriptor ->
+                    referencedClasses += descriptorClasses(descriptor)
+                }
+            referencedClasses += annotationClasses
+            referencedClasses -= name
+
+            return ClassFile(
+                name = name,
+                superName = superName,
+                interfaces = interfaces,
+                sourceFile = sourceFile,
+                sourceDebugExtension = sourceDebugExtension,
+                referencedClasses = referencedClasses,
+                stringConstants = strings.mapNotNull { index -> utf8[index] },
+                abiHash = abi.digest().toHex(),
+                constantsHash = constants.digest().toHex(),
+            )
+        }
+
+        private fun ByteArray.u2(offset: Int) =
+            ((this[offset].toInt() and 0xFF) shl 8) or
+                    (this[offset + 1].toInt() and 0xFF)
+
+        internal fun descriptorClasses(descriptor: String): List<String> {
+            val result = mutableListOf<String>()
+            var start = descriptor.indexOf('L')
+            while (start >= 0) {
+                val end = descriptor.indexOf(';', start)
+                if (end < 0) {
+                    break
+                }
+                result += descriptor.substring(start + 1, end)
+                start = descriptor.indexOf('L', end)
+            }
+            return result
+        }
+
+        /**
+         * File names in the `*F` sections of a source map (JSR-45), e.g. the
+         * sources whose inline functions were copied into the class.
+         */
+        internal fun sourceMapFiles(smap: String): Set<String> {
+            val result = mutableSetOf<String>()
+            var files = false
+            var path = false
+            smap.lineSequence().forEach { line ->
+                when {
+                    line.startsWith("*") -> {
+                        files = line.trim() == "*F"
+                        path = false
+                    }
+                    // the path follows on the next line
+                    path -> path = false
+                    files -> {
+                        val info = line.removePrefix("+ ")
+                        path = info != line
+                        info.trim().split(' ', limit = 2).getOrNull(1)?.let { name ->
+                            result += name
+                        }
+                    }
+                }
+            }
+            return result
+        }
+
+        /**
+         * Classes named by a generic signature, inner classes in binary form.
+         */
+        internal fun signatureClasses(signature: String): List<String> {
+            val result = mutableListOf<String>()
+            var i = 0
+            fun typeSignature() {
+                when (signature[i]) {
+                    'L' -> {
+                        var name = ""
+                        var start = i + 1
+                        while (true) {
+                            i = signature.indexOfAny(charArrayOf('<', '.', ';'), i)
+                            name += signature.substring(start, i)
+                            if (signature[i] == '<') {
+                                i++
+                                while (signature[i] != '>') {
+                                    when (signature[i]) {
+                                        '*' -> i++
+                                        '+', '-' -> {
+                                            i++
+                                            typeSignature()
+                                        }
+                                        else -> typeSignature()
+                                    }
+                                }
+                                i++
+                            }
+                            result += name
+                            if (signature[i] == ';') {
+                                break
+                            }
+                            // '.': inner class of a parameterized type
+                            name += "$"
+                            start = ++i
+                        }
+                        i++
+                    }
+                    'T' -> i = signature.indexOf(';', i) + 1
+                    '[' -> {
+                        i++
+                        typeSignature()
+                    }
+                    else -> i++
+                }
+            }
+            if (signature.startsWith("<")) {
+                i = 1
+                while (signature[i] != '>') {
+                    i = signature.indexOf(':', i)
+                    while (signature[i] == ':') {
+                        i++
+                        if (signature[i] != ':') {
+                            typeSignature()
+                        }
+                    }
+                }
+                i++
+            }
+            while (i < signature.length) {
+                when (signature[i]) {
+                    '(', ')', '^' -> i++
+                    else -> typeSignature()
+                }
+            }
+            return result
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package kotlin_script
+
+import java.io.*
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketTimeoutException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.PosixFilePermission
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.io.path.*
+import kotlin.system.exitProcess
+
+/**
+ * Shared warm compiler JVM, one per java home and compiler class path.
+ *
+ * Clients connect over loopback using the port and token published in a
+ * user-only port file, send the compiler arguments (with absolute paths)
+ * and receive the exit code and the compiler output. The daemon is started
+ * on demand and exits after being idle for `KOTLIN_SCRIPT_DAEMON_IDLE`
+ * seconds (default 600).
+ */
+internal class CompileDaemon(
+    private val dir: Path,
+    private val id: String,
+    private val javaHome: Path = Paths.get(System.getProperty("java.home")),
+    private val classPath: List<Path> = emptyList(),
+    private val p: Progress? = null,
+) {
+    private val portFile = dir / "compiler-$id.port"
+
+    /**
+     * Compiles with the daemon, starting it if necessary.
+     *
+     * @return exit code and compiler output, or `null` when the daemon is
+     * not available and the compiler has to be forked
+     */
+    fun compile(args: List<String>): Pair<Int, String>? {
+        val socket = connect() ?: spawnAndConnect() ?: return null
+        return try {
+            socket.use { s ->
+                val out = DataOutputStream(BufferedOutputStream(s.getOutputStream()))
+                out.writeInt(args.size)
+                args.forEach { arg -> out.writeLongString(arg) }
+                out.flush()
+                val `in` = DataInputStream(BufferedInputStream(s.getInputStream()))
+                val rc = `in`.readInt()
+                rc to `in`.readLongString()
+            }
+        } catch (ex: IOException) {
+            p?.trace("compile daemon failed:", ex.toString())
+            null
+        }
+    }
+
+    private fun connect(): Socket? {
+        val (port, token) = try {
+            portFile.readText().trim().split(" ")
+                .takeIf { it.size == 2 }
+                ?: return null
+        } catch (_: IOException) {
+            return null
+        }
+        return try {
+            val socket = Socket(InetAddress.getLoopbackAddress(), port.toInt())
+            try {
+                val out = DataOutputStream(BufferedOutputStream(socket.getOutputStream()))
+                out.writeUTF(token)
+                out.flush()
+                if (socket.getInputStream().read() == 1) {
+                    return socket
+                }
+            } catch (_: IOException) {
+            }
+            socket.close()
+            null
+        } catch (_: IOException) {
+            null
+        } catch (_: NumberFormatException) {
+            null
+        }
+    }
+
+    private fun spawnAndConnect(): Socket? {
+        // the file lock helper also serializes threads of this jvm
+        lockFile(
+            dir / "compiler-$id.lock",
+            p ?: Progress(),
+            "waiting for compile daemon"
+        ).use {
+            connect()?.let { return it }
+            val self = Paths.get(
+                CompileDaemon::class.java.protectionDomain.codeSource.location.toURI()
+            )
+            val sh = Paths.get("/bin/sh")
+            val command = listOf(
+                // ignored signals are inherited and kept by the jvm, so a ^C
+                // sent to the process group of the first client does not stop it
+                *if (sh.isExecutable()) {
+                    arrayOf(sh.pathString, "-c", "trap '' INT HUP; exec \"\$0\" \"\$@\"")
+                } else {
+                    emptyArray<String>()
+                },
+                (javaHome / "bin" / "java").absolutePathString(),
+                "-Djava.awt.headless=true",
+                "-Dkotlin.environment.keepalive=true",
+                "-cp",
+                (listOf(self) + classPath).joinToString(File.pathSeparator) { f ->
+                    f.absolutePathString()
+                },
+                CompileDaemon::class.java.name,
+                dir.absolutePathString(),
+                id
+            )
+            p?.trace(*command.toTypedArray())
+            val process = ProcessBuilder(command)
+                .redirectInput(ProcessBuilder.Redirect.from(File("/dev/null")))
+                .redirectErrorStream(true)
+                .redirectOutput(
+                    ProcessBuilder.Redirect.appendTo((dir / "compiler-$id.log").toFile())
+                )
+                .start()
+            val deadline = System.currentTimeMillis() + SPAWN_TIMEOUT_MS
+            while (System.currentTimeMillis() < deadline) {
+                connect()?.let { return it }
+                if (!process.isAlive) {
+                    return null
+                }
+                Thread.sleep(20L)
+            }
+            return null
+        }
+    }
+
+    private fun serve() {
+        val idleTimeoutSeconds = System.getenv("KOTLIN_SCRIPT_DAEMON_IDLE")
+            ?.trim()
+            ?.toLongOrNull()
+            ?: DEFAULT_IDLE_TIMEOUT_S
+        val token = ByteArray(32).also { SecureRandom().nextBytes(it) }.toHex()
+        val compilerClass = Class.forName(KOTLIN_JVM_COMPILER_MAIN)
+        val exec = compilerClass.getMethod(
+            "exec",
+            PrintStream::class.java,
+            Array<String>::class.java
+        )
+        val active = AtomicInteger()
+        var lastActive = System.currentTimeMillis()
+        ServerSocket(0, 50, InetAddress.getLoopbackAddress()).use { serverSocket ->
+            serverSocket.soTimeout = 5_000
+            writePortFile("${serverSocket.localPort} $token")
+            try {
+                while (true) {
+                    val socket = try {
+                        serverSocket.accept()
+                    } catch (_: SocketTimeoutException) {
+                        if (active.get() > 0) {
+                            lastActive = System.currentTimeMillis()
+                        } else if (System.currentTimeMillis() - lastActive >=
+                            TimeUnit.SECONDS.toMillis(idleTimeoutSeconds)) {
+                            break
+                        }
+                        continue
+                    }
+                    lastActive = System.currentTimeMillis()
+                    active.incrementAndGet()
+                    thread(name = "compile") {
+                        try {
+                            socket.use { s -> session(s, token, compilerClass, exec) }
+                        } catch (ex: Throwable) {
+                            System.err.println("warning: compile session failed: $ex")
+                        } finally {
+                            active.decrementAndGet()
+                        }
+                    }
+                }
+            } finally {
+                portFile.deleteIfExists()
+            }
+        }
+    }
+
+    private fun session(
+        socket: Socket,
+        token: String,
+        compilerClass: Class<*>,
+        exec: java.lang.reflect.Method
+    ) {
+        val `in` = DataInputStream(BufferedInputStream(socket.getInputStream()))
+        val clientToken = `in`.readUTF()
+        val rawOut = socket.getOutputStream()
+        if (!MessageDigest.isEqual(clientToken.toByteArray(), token.toByteArray())) {
+            rawOut.write(0)
+            return
+        }
+        rawOut.write(1)
+        rawOut.flush()
+        val args = Array(`in`.readInt()) { `in`.readLongString() }
+        val output = ByteArrayOutputStream()
+        val rc = try {
+            PrintStream(output, true, "UTF-8").use { ps ->
+                val compiler = compilerClass.getConstructor().newInstance()
+                val exitCode = exec.invoke(compiler, ps, args)
+                exitCode.javaClass.getMethod("getCode").invoke(exitCode) as Int
+            }
+        } catch (ex: Throwable) {
+            PrintStream(output, true, "UTF-8").use { ps ->
+                ex.printStackTrace(ps)
+            }
+            INTERNAL_ERROR
+        }
+        val out = DataOutputStream(BufferedOutputStream(rawOut))
+        out.writeInt(rc)
+        out.writeLongString(output.toString("UTF-8"))
+        out.flush()
+    }
+
+    private fun writePortFile(content: String) {
+        dir.createDirectories()
+        val tmp = Files.createTempFile(dir, "compiler-$id", ".port~")
+        try {
+            try {
+                tmp.setPosixFilePermissions(
+                    setOf(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)
+                )
+            } catch (_: UnsupportedOperationException) {
+            }
+            tmp.writeText(content)
+            Files.move(
+                tmp,
+                portFile,
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING
+            )
+        } finally {
+            tmp.deleteIfExists()
+        }
+    }
+
+    companion object {
+        private const val SPAWN_TIMEOUT_MS = 30_000L
+        private const val DEFAULT_IDLE_TIMEOUT_S = 600L
+        private const val INTERNAL_ERROR = 2
+
+        private const val KOTLIN_JVM_COMPILER_MAIN =
+            "org.jetbrains.kotlin.cli.jvm.K2JVMCompiler"
+
+        private fun DataOutputStream.writeLongString(s: String) {
+            val bytes = s.toByteArray(Charsets.UTF_8)
+            writeInt(bytes.size)
+            write(bytes)
+        }
+
+        private fun DataInputStream.readLongString(): String {
+            val bytes = ByteArray(readInt())
+            readFully(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
+
+        @JvmStatic
+        fun main(args: Array<String>) {
+            if (args.size != 2) {
+                System.err.println("usage: CompileDaemon DIR ID")
+                exitProcess(2)
+            }
+            CompileDaemon(Paths.get(args[0]), args[1]).serve()
+            exitProcess(0)
+        }
+
+        fun forClassPath(
+            dir: Path,
+            javaHome: Path,
+            classPath: List<Path>,
+            p: Progress? = null
+        ): CompileDaemon {
+            val id = MessageDigest.getInstance("SHA-256").run {
+                update(javaHome.absolutePathString().toByteArray())
+                classPath.forEach { f ->
+                    update(0)
+                    update(f.absolutePathString().toByteArray())
+                }
+                digest().copyOf(16).toHex()
+            }
+            return CompileDaemon(dir, id, javaHome, classPath, p)
+        }
+    }
+}
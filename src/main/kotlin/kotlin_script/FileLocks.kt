@@ -0,0 +1,77 @@
+package kotlin_script
+
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+import java.nio.channels.OverlappingFileLockException
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import kotlin.io.path.createDirectories
+
+/**
+ * Exclusive lock on a lock file, shared between processes (and between
+ * threads of the same process, where `FileChannel.lock` would throw).
+ */
+internal class FileLockHandle(
+    private val channel: FileChannel,
+    private val lock: FileLock
+) : AutoCloseable {
+    override fun close() {
+        try {
+            lock.release()
+        } finally {
+            channel.close()
+        }
+    }
+}
+
+internal fun tryLockFile(path: Path): FileLockHandle? {
+    path.parent?.createDirectories()
+    val channel = FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE
+    )
+    val lock = try {
+        channel.tryLock()
+    } catch (_: OverlappingFileLockException) {
+        null
+    } catch (ex: Throwable) {
+        channel.close()
+        throw ex
+    }
+    if (lock == null) {
+        channel.close()
+        return null
+    }
+    return FileLockHandle(channel, lock)
+}
+
+internal fun lockFile(path: Path, p: Progress, waiting: String): FileLockHandle {
+    tryLockFile(path)?.let { return it }
+    p.trace("wait", path.toString())
+    return p.withProgress(waiting) {
+        var handle: FileLockHandle? = null
+        while (handle == null) {
+            Thread.sleep(LOCK_POLL_INTERVAL_MS)
+            handle = tryLockFile(path)
+        }
+        handle
+    }
+}
+
+/** Locks the first available of [paths], e.g. one of a number of slots. */
+internal fun lockAnyFile(paths: List<Path>, p: Progress, waiting: String): FileLockHandle {
+    fun tryLockAny() = paths.firstNotNullOfOrNull { path -> tryLockFile(path) }
+    tryLockAny()?.let { return it }
+    p.trace("wait", paths.firstOrNull()?.parent.toString())
+    return p.withProgress(waiting) {
+        var handle: FileLockHandle? = null
+        while (handle == null) {
+            Thread.sleep(LOCK_POLL_INTERVAL_MS)
+            handle = tryLockAny()
+        }
+        handle
+    }
+}
+
+private const val LOCK_POLL_INTERVAL_MS = 100L
@@ -0,0 +1,301 @@
+package kotlin_script
+
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.stream.Collectors
+import kotlin.io.path.*
+
+/**
+ * Keeps the class files and source checksums of the last successful
+ * compilation of a script, so that a change to one of its sources only
+ * recompiles that source and the sources depending on its ABI (or inlining
+ * its code). Everything else is taken from the previous compilation.
+ *
+ * The state is discarded, and all sources are compiled, whenever the
+ * compiler arguments change, a recompiled source no longer produces the
+ * same set of classes (the `.kotlin_module` of the previous compilation has
+ * to stay valid) or changes the value of a constant (`const val` is
+ * inlined without a reference that tells where it is used).
+ */
+internal class IncrementalCompiler(
+    private val stateDir: Path,
+    private val p: Progress,
+) {
+    /**
+     * Compiles [sources] (relative to the working directory) to the output
+     * directory, with [classPath] added to the compile class path.
+     */
+    fun interface Compiler {
+        fun compile(classPath: List<Path>, sources: List<String>): Pair<Int, String>
+    }
+
+    private class Source(val path: String, val checksum: String) {
+        val fileName = Path(path).name
+    }
+
+    private class ClassInfo(val file: Path, val classFile: ClassFile)
+
+    private val stateFile = stateDir / "state"
+    private val classesDir = stateDir / "classes"
+
+    fun compile(
+        sources: Map<String, String>,
+        argsKey: String,
+        outputDir: Path,
+        compiler: Compiler
+    ): Pair<Int, String> {
+        // state in use by a concurrent compilation of the script
+        val lock = tryLockFile(stateDir / "lock")
+            ?: return compiler.compile(emptyList(), sources.keys.toList())
+        return lock.use {
+            compileLocked(
+                sources.map { (path, checksum) -> Source(path, checksum) },
+                argsKey,
+                outputDir,
+                compiler
+            )
+        }
+    }
+
+    private fun compileLocked(
+        sources: List<Source>,
+        argsKey: String,
+        outputDir: Path,
+        compiler: Compiler
+    ): Pair<Int, String> {
+        val previous = loadState(argsKey)
+        if (previous == null ||
+            previous.map { s -> s.path }.toSet() != sources.map { s -> s.path }.toSet() ||
+            sources.map { s -> s.fileName }.toSet().size != sources.size) {
+            // new, removed or ambiguous sources
+            return fullCompile(sources, argsKey, outputDir, compiler)
+        }
+        return try {
+            incrementalCompile(sources, previous, argsKey, outputDir, compiler)
+        } catch (ex: IOException) {
+            p.trace("incremental compile failed:", ex.toString())
+            fullCompile(sources, argsKey, outputDir, compiler)
+        }
+    }
+
+    private fun incrementalCompile(
+        sources: List<Source>,
+        previous: List<Source>,
+        argsKey: String,
+        outputDir: Path,
+        compiler: Compiler
+    ): Pair<Int, String> {
+        val bySource = groupBySource(classesDir, sources)
+        val previousByPath = previous.associateBy { s -> s.path }
+        val changed = sources.filter { s -> previousByPath[s.path]?.checksum != s.checksum }
+
+        val dirty = mutableSetOf<String>()
+        dirty += changed.map { s -> s.path }
+        // inlined code is copied into the callers
+        val changedNames = changed.map { s -> s.fileName }
+        sources.forEach { s ->
+            val inlinesChanged = bySource[s.path].orEmpty().any { c ->
+                val inlined = c.classFile.sourceDebugExtension
+                    ?.let { smap -> ClassFile.sourceMapFiles(smap) }
+                    .orEmpty()
+                changedNames.any { name -> name != s.fileName && name in inlined }
+            }
+            if (inlinesChanged) {
+                dirty += s.path
+            }
+        }
+
+        while (true) {
+            if (dirty.size == sources.size) {
+                return fullCompile(sources, argsKey, outputDir, compiler)
+            }
+            p.trace("incremental compile", *dirty.toTypedArray())
+            clearOutputs(outputDir)
+            val staging = createTempDirectory(stateDir, "classes")
+            try {
+                // classes of everything not recompiled
+                val kept = sources.filterNot { s -> s.path in dirty }
+                    .flatMap { s -> bySource[s.path].orEmpty() }
+                kept.forEach { c ->
+                    val target = staging / classesDir.relativize(c.file).pathString
+                    target.parent.createDirectories()
+                    c.file.copyTo(target)
+                }
+                copyModuleFiles(classesDir, staging)
+
+                val result = compiler.compile(
+                    listOf(staging),
+                    sources.map { s -> s.path }.filter { path -> path in dirty }
+                )
+                if (result.first != 0) {
+                    return result
+                }
+
+                val compiled = groupBySource(outputDir, sources)
+                val sameClasses = dirty.all { path ->
+                    compiled[path].orEmpty().map { c -> c.classFile.name }.toSet() ==
+                            bySource[path].orEmpty().map { c -> c.classFile.name }.toSet()
+                }
+                if (!sameClasses) {
+                    p.trace("incremental compile: declared classes changed")
+                    return fullCompile(sources, argsKey, outputDir, compiler)
+                }
+                // inlined without a reference to the declaring class
+                val constantsChanged = dirty.any { path ->
+                    constantsHashes(compiled[path].orEmpty()) !=
+                            constantsHashes(bySource[path].orEmpty())
+                }
+                if (constantsChanged) {
+                    p.trace("incremental compile: constants changed")
+                    return fullCompile(sources, argsKey, outputDir, compiler)
+                }
+                val abiChanged = dirty.filter { path ->
+                    abiHashes(compiled[path].orEmpty()) != abiHashes(bySource[path].orEmpty())
+                }
+                val newDirty = dependents(
+                    abiChanged.flatMap { path -> bySource[path].orEmpty() }
+                        .map { c -> c.classFile.name }
+                        .toSet(),
+                    sources,
+                    bySource
+                ) - dirty
+                if (newDirty.isNotEmpty()) {
+                    dirty += newDirty
+                    continue
+                }
+
+                // merge with the classes kept from the previous compilation
+                Files.walk(staging).use { files ->
+                    files.filter { f -> f.isRegularFile() }.forEach { f ->
+                        val target = outputDir / staging.relativize(f).pathString
+                        target.parent.createDirectories()
+                        f.copyTo(target, overwrite = true)
+                    }
+                }
+                saveState(sources, argsKey, outputDir)
+                return result
+            } finally {
+                deleteTree(staging)
+            }
+        }
+    }
+
+    private fun fullCompile(
+        sources: List<Source>,
+        argsKey: String,
+        outputDir: Path,
+        compiler: Compiler
+    ): Pair<Int, String> {
+        clearOutputs(outputDir)
+        val result = compiler.compile(emptyList(), sources.map { s -> s.path })
+        if (result.first == 0) {
+            try {
+                saveState(sources, argsKey, outputDir)
+            } catch (ex: IOException) {
+                System.err.println("warning: failed to save incremental state: $ex")
+                stateFile.deleteIfExists()
+            }
+        } else {
+            stateFile.deleteIfExists()
+        }
+        return result
+    }
+
+    private fun dependents(
+        classNames: Set<String>,
+        sources: List<Source>,
+        bySource: Map<String, List<ClassInfo>>
+    ): Set<String> {
+        if (classNames.isEmpty()) {
+            return emptySet()
+        }
+        return sources.filter { s ->
+            bySource[s.path].orEmpty().any { c ->
+                c.classFile.referencedClasses.any { ref -> ref in classNames }
+            }
+        }.map { s -> s.path }.toSet()
+    }
+
+    private fun abiHashes(classes: List<ClassInfo>) =
+        classes.map { c -> c.classFile.name to c.classFile.abiHash }.toSet()
+
+    private fun constantsHashes(classes: List<ClassInfo>) =
+        classes.map { c -> c.classFile.name to c.classFile.constantsHash }.toSet()
+
+    private fun loadState(argsKey: String): List<Source>? {
+        if (!stateFile.isRegularFile() || !classesDir.isDirectory()) {
+            return null
+        }
+        val lines = stateFile.readLines()
+        if (lines.firstOrNull() != "///ARGS=$argsKey") {
+            return null
+        }
+        return lines.drop(1).mapNotNull { line ->
+            line.removePrefix("///SRC=")
+                .takeIf { it != line }
+                ?.split(' ', limit = 2)
+                ?.takeIf { it.size == 2 }
+                ?.let { (checksum, path) -> Source(path, checksum) }
+        }
+    }
+
+    private fun saveState(sources: List<Source>, argsKey: String, outputDir: Path) {
+        stateFile.deleteIfExists()
+        deleteTree(classesDir)
+        classesDir.createDirectories()
+        outputFiles(outputDir).forEach { f ->
+            val target = classesDir / outputDir.relativize(f).pathString
+            target.parent.createDirectories()
+            f.copyTo(target)
+        }
+        val tmp = stateDir / "state~"
+        tmp.writeText(buildString {
+            append("///ARGS=$argsKey\n")
+            sources.forEach { s -> append("///SRC=${s.checksum} ${s.path}\n") }
+        })
+        tmp.moveTo(stateFile, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    private fun groupBySource(dir: Path, sources: List<Source>): Map<String, List<ClassInfo>> {
+        val byName = sources.associateBy { s -> s.fileName }
+        return outputFiles(dir)
+            .filter { f -> f.name.endsWith(".class") }
+            .map { f -> ClassInfo(f, ClassFile.parse(f.readBytes())) }
+            .groupBy { c ->
+                byName[c.classFile.sourceFile]?.path
+                    ?: throw IOException("unknown source of ${c.classFile.name}")
+            }
+    }
+
+    private fun outputFiles(dir: Path): List<Path> = Files.walk(dir).use { files ->
+        files.filter { f ->
+            f.isRegularFile() && (f.name.endsWith(".class") ||
+                    (f.name.endsWith(".kotlin_module") && f.parent.name == "META-INF"))
+        }.collect(Collectors.toList())
+    }
+
+    private fun copyModuleFiles(from: Path, to: Path) {
+        val metaInf = from / "META-INF"
+        if (metaInf.isDirectory()) {
+            (to / "META-INF").createDirectories()
+            metaInf.listDirectoryEntries("*.kotlin_module").forEach { f ->
+                f.copyTo(to / "META-INF" / f.name, overwrite = true)
+            }
+        }
+    }
+
+    private fun clearOutputs(dir: Path) {
+        outputFiles(dir).forEach { f -> f.deleteIfExists() }
+    }
+
+    private fun deleteTree(dir: Path) {
+        if (!dir.exists()) {
+            return
+        }
+        Files.walk(dir).use { files ->
+            files.sorted(Comparator.reverseOrder()).forEach { f -> f.deleteIfExists() }
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package kotlin_script
 
 import com.github.ajalt.mordant.terminal.Terminal
+import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.IOException
+import java.io.OutputStream
+import java.io.PrintStream
+import java.lang.management.ManagementFactory
+import java.net.InetSocketAddress
+import java.net.URLClassLoader
 import java.nio.file.*
 import java.nio.file.attribute.BasicFileAttributes
 import java.nio.file.attribute.PosixFilePermission
 import java.nio.file.attribute.PosixFilePermissions
+import java.security.MessageDigest
 import java.util.jar.Attributes
 import java.util.jar.Manifest
+import java.util.zip.CRC32
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
 import kotlin.concurrent.thread
@@ -33,10 +41,45 @@ class KotlinScript(
     private val progress: Boolean = false,
     private val trace: Boolean = false,
     private val force: Boolean = false,
+    private val compilerMode: String = System.getenv("KOTLIN_SCRIPT_COMPILER")
+        ?.takeIf { v -> v.isNotBlank() }
+        ?.trim()
+        ?: "fork",
+    private val compileSlots: Int = System.getenv("KOTLIN_SCRIPT_COMPILE_SLOTS")
+        ?.trim()
+        ?.toIntOrNull()
+        ?.takeIf { n -> n > 0 }
+        ?: defaultCompileSlots(),
+    private val fetchConcurrency: Int = System.getenv("KOTLIN_SCRIPT_FETCH_CONCURRENCY")
+        ?.trim()
+        ?.toIntOrNull()
+        ?.takeIf { n -> n > 0 }
+        ?: Resolver.DEFAULT_MAX_CONCURRENCY,
+    private val mirrorMode: String = System.getenv("KOTLIN_SCRIPT_MIRROR_MODE")
+        ?.takeIf { v -> v.isNotBlank() }
+        ?.trim()
+        ?: "copy",
+    private val jarOutput: String = System.getenv("KOTLIN_SCRIPT_JAR_OUTPUT")
+        ?.takeIf { v -> v.isNotBlank() }
+        ?.trim()
+        ?: "staged",
+    private val jarLayout: String = System.getenv("KOTLIN_SCRIPT_JAR_LAYOUT")
+        ?.takeIf { v -> v.isNotBlank() }
+        ?.trim()
+        ?: "deflated",
+    private val lazyRuntime: Boolean = System.getenv("KOTLIN_SCRIPT_LAZY_RDEP")
+        ?.isNotBlank() == true,
+    private val shrink: Boolean = System.getenv("KOTLIN_SCRIPT_SHRINK")
+        ?.isNotBlank() == true,
+    private val incrementalCompile: Boolean = System.getenv("KOTLIN_SCRIPT_INCREMENTAL")
+        ?.isNotBlank() == true,
 ) {
     private val javaVersion =
         System.getProperty("java.vm.specification.version") ?: "1.8"
 
+    // the shrinker reads every runtime dependency
+    private val lazyFetch = lazyRuntime && !shrink
+
     private val kotlinJvmTarget = when (javaVersion) {
         in supportedJavaVersions -> javaVersion
         else -> supportedJavaVersions.last()
@@ -52,7 +95,9 @@ class KotlinScript(
         mavenRepoUrl = mavenRepoUrl,
         mavenRepoCache = mavenRepoCache,
         localRepo = localRepo,
-        p = p
+        p = p,
+        maxConcurrency = fetchConcurrency,
+        mirrorMode = mirrorMode
     )
 
     private fun defaultDependencyVersion(d: Dependency): String {
@@ -63,37 +108,332 @@ class KotlinScript(
     }
 
     private fun kotlinCompilerArgs(
-        compilerDependencies: List<Path>,
         compilerPlugins: List<Path>
     ): Array<String> {
+        return arrayOf(
+            *compilerPlugins.map { p ->
+                "-Xplugin=${p.absolutePathString()}"
+            }.toTypedArray(),
+            "-jvm-target", kotlinJvmTarget,
+            "-no-reflect",
+            "-no-stdlib"
+        )
+    }
+
+    private fun forkCompiler(
+        compilerDependencies: List<Path>,
+        compilerArgs: List<String>,
+        workDir: Path
+    ): Pair<Int, String> {
         val cp = compilerDependencies.joinToString(File.pathSeparator) { f ->
             //TODO use correct quoting
             f.toAbsolutePath().toString()
         }
-        return arrayOf(
+        val javaArgs = listOf(
             (javaHome / "bin" / "java").absolutePathString(),
             "-Djava.awt.headless=true",
             "-cp", cp,
             KOTLIN_JVM_COMPILER_MAIN,
-            *compilerPlugins.map { p ->
-                "-Xplugin=${p.absolutePathString()}"
-            }.toTypedArray(),
-            "-jvm-target", kotlinJvmTarget,
-            "-no-reflect",
-            "-no-stdlib"
+        )
+        p.trace(*(javaArgs + compilerArgs).toTypedArray())
+        // workDir may be the script directory when compiling in place
+        val compilerLog = createTempFile("kotlin_script", ".log")
+        try {
+            val compilerProcess = ProcessBuilder(javaArgs + compilerArgs)
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(compilerLog.toFile())
+                .start()
+            compilerProcess.outputStream.close()
+            val rc = compilerProcess.waitFor()
+            val compilerErrors = compilerLog.readText()
+            return rc to compilerErrors
+        } finally {
+            compilerLog.deleteIfExists()
+        }
+    }
+
+    private fun daemonCompiler(
+        compilerDependencies: List<Path>,
+        compilerArgs: List<String>,
+        sources: List<String>,
+        workDir: Path
+    ): Pair<Int, String>? {
+        // the daemon does not share our working directory
+        val workDirPrefix = workDir.toAbsolutePath().toString() + File.separator
+        val absoluteArgs = compilerArgs + sources.map { f -> workDirPrefix + f }
+        val daemon = CompileDaemon.forClassPath(
+            dir = localRepo / "org/cikit/kotlin_script_cache" /
+                    KOTLIN_SCRIPT_VERSION / "daemon",
+            javaHome = javaHome,
+            classPath = compilerDependencies,
+            p = p
+        )
+        p.trace("compile daemon", *absoluteArgs.toTypedArray())
+        return daemon.compile(absoluteArgs)?.let { (rc, output) ->
+            rc to output.replace(workDirPrefix, "")
+        }
+    }
+
+    private fun inProcessCompiler(
+        compilerDependencies: List<Path>,
+        compilerArgs: List<String>,
+        sources: List<String>,
+        workDir: Path
+    ): Pair<Int, String> {
+        val workDirPrefix = workDir.toAbsolutePath().toString() + File.separator
+        val absoluteArgs = compilerArgs + sources.map { f -> workDirPrefix + f }
+        p.trace("compile in-process", *absoluteArgs.toTypedArray())
+        // isolated from kotlin_script and its dependencies, but not from
+        // the platform modules of jdk 9+
+        val parent = try {
+            ClassLoader::class.java.getMethod("getPlatformClassLoader").invoke(null) as ClassLoader
+        } catch (_: NoSuchMethodException) {
+            null
+        }
+        val urls = compilerDependencies.map { f -> f.toUri().toURL() }
+        return URLClassLoader(urls.toTypedArray(), parent).use { cl ->
+            val compilerClass = cl.loadClass(KOTLIN_JVM_COMPILER_MAIN)
+            val compiler = compilerClass.getConstructor().newInstance()
+            val exec = compilerClass.getMethod(
+                "exec",
+                PrintStream::class.java,
+                Array<String>::class.java
+            )
+            // streamed, and collected like the output of the other modes
+            // so that failures are cached with their diagnostics
+            val diagnostics = DiagnosticsOutputStream(workDirPrefix)
+            val thread = Thread.currentThread()
+            val contextClassLoader = thread.contextClassLoader
+            val headless = System.getProperty("java.awt.headless")
+            thread.contextClassLoader = cl
+            if (headless == null) {
+                System.setProperty("java.awt.headless", "true")
+            }
+            val exitCode = try {
+                PrintStream(diagnostics, true, "UTF-8").use { ps ->
+                    exec.invoke(compiler, ps, absoluteArgs.toTypedArray())
+                }
+            } finally {
+                thread.contextClassLoader = contextClassLoader
+                if (headless == null) {
+                    System.clearProperty("java.awt.headless")
+                }
+            }
+            val rc = exitCode.javaClass.getMethod("getCode").invoke(exitCode) as Int
+            rc to diagnostics.toString()
+        }
+    }
+
+    /**
+     * Copies compiler output to stderr line by line, without [workDirPrefix],
+     * and keeps it.
+     */
+    private class DiagnosticsOutputStream(private val workDirPrefix: String) : OutputStream() {
+        private val line = ByteArrayOutputStream()
+        private val text = StringBuilder()
+
+        override fun write(b: Int) {
+            line.write(b)
+            if (b == '\n'.code) {
+                flushLine()
+            }
+        }
+
+        private fun flushLine() {
+            if (line.size() > 0) {
+                val s = line.toString("UTF-8").replace(workDirPrefix, "")
+                text.append(s)
+                System.err.print(s)
+                line.reset()
+            }
+            System.err.flush()
+        }
+
+        override fun flush() = Unit
+
+        // keep System.err open
+        override fun close() = flushLine()
+
+        override fun toString() = text.toString()
+    }
+
+    private fun runCompiler(
+        compilerDependencies: List<Path>,
+        compilerArgs: List<String>,
+        sources: List<String>,
+        workDir: Path
+    ): Pair<Int, String> {
+        // host-wide limit of concurrent compilations
+        val slotDir = localRepo / "org/cikit/kotlin_script_cache/compile-slots"
+        return lockAnyFile(
+            (0 until compileSlots).map { i -> slotDir / "slot-$i.lock" },
+            p,
+            "waiting for one of $compileSlots compile slots"
+        ).use {
+            runCompilerInSlot(compilerDependencies, compilerArgs, sources, workDir)
+        }
+    }
+
+    private fun runCompilerInSlot(
+        compilerDependencies: List<Path>,
+        compilerArgs: List<String>,
+        sources: List<String>,
+        workDir: Path
+    ): Pair<Int, String> = when (compilerMode) {
+        "daemon" -> daemonCompiler(
+            compilerDependencies,
+            compilerArgs,
+            sources,
+            workDir
+        )
+        "in-process" -> inProcessCompiler(
+            compilerDependencies,
+            compilerArgs,
+            sources,
+            workDir
+        )
+        else -> null
+    } ?: forkCompiler(
+        compilerDependencies,
+        compilerArgs + sources,
+        workDir
+    )
+
+    private fun compilationFailed(
+        failedFile: Path,
+        rc: Int,
+        compilerErrors: String
+    ): Nothing {
+        // in-process diagnostics are already streamed
+        if (compilerErrors.isNotEmpty() && compilerMode != "in-process") {
+            System.err.println(compilerErrors)
+        }
+        // only cache errors in the sources, not crashes of the compiler
+        if (rc == COMPILATION_ERROR) {
+            try {
+                failedFile.parent?.createDirectories()
+                val tmp = createTempFile(failedFile.parent, "${failedFile.name}~", "")
+                try {
+                    tmp.writeText("$rc\n$compilerErrors")
+                    tmp.moveTo(
+                        failedFile,
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING
+                    )
+                } finally {
+                    tmp.deleteIfExists()
+                }
+            } catch (ex: IOException) {
+                System.err.println("warning: failed to cache compilation error: $ex")
+            }
+        }
+        exitProcess(rc)
+    }
+
+    private fun libDependency(metaData: MetaData): Dependency? {
+        if (metaData.lib.isEmpty()) {
+            return null
+        }
+        // shared by all scripts compiling the same library sources with
+        // the same dependencies and compiler arguments
+        val key = buildString {
+            append(kotlinJvmTarget).append("\n")
+            metaData.dep.filterNot { d -> d.scope == Scope.Runtime }.forEach { d ->
+                append(d.toSpec()).append("\n")
+            }
+            metaData.compilerArgs.forEach { arg -> append(arg).append("\n") }
+            metaData.inc.filter { s -> s.path in metaData.lib }.forEach { s ->
+                append(s.checksum).append(" ").append(s.path.name).append("\n")
+            }
+        }
+        return Dependency(
+            groupId = "org.cikit",
+            artifactId = "kotlin_script_lib",
+            version = KOTLIN_SCRIPT_VERSION,
+            classifier = "java$kotlinJvmTarget-sha256=${key.sha256()}"
         )
     }
 
-    private fun ZipOutputStream.writeFileTree(start: Path) {
+    private fun buildLibrary(
+        metaData: MetaData,
+        failedFile: Path,
+        libJar: Path,
+        compilerDependencies: List<Path>,
+        compilerArgs: List<String>
+    ) {
+        if (!force && libJar.isReadable()) {
+            return
+        }
+        val libTmp = createTempDirectory("kotlin_script_lib")
+        try {
+            val libSources = metaData.inc.filter { s -> s.path in metaData.lib }
+            val sources = libSources.mapIndexed { i, s ->
+                val f = libTmp / "src" / "$i" / s.path.name
+                f.parent.createDirectories()
+                f.writeBytes(s.data)
+                libTmp.relativize(f).invariantSeparatorsPathString
+            }
+            val classes = libTmp / "classes"
+            val (rc, compilerErrors) = p.withProgress(
+                "compiling library ${libSources.first().path}"
+            ) {
+                runCompiler(
+                    compilerDependencies,
+                    compilerArgs + listOf("-d", classes.absolutePathString()),
+                    sources,
+                    libTmp
+                )
+            }
+            if (rc != 0) {
+                val errors = sources.zip(libSources).fold(compilerErrors) { acc, (f, s) ->
+                    acc.replace(f, s.path.pathString)
+                }
+                compilationFailed(failedFile, rc, errors)
+            }
+            libJar.parent?.createDirectories()
+            val tmpJar = createTempFile(libJar.parent, "${libJar.name}~", "")
+            try {
+                p.trace("write", libJar.absolutePathString())
+                tmpJar.outputStream().use { out ->
+                    ZipOutputStream(out).use { zout ->
+                        zout.writeFileTree(classes, stored = jarLayout == "stored")
+                        zout.finish()
+                    }
+                }
+                tmpJar.moveTo(
+                    libJar,
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING
+                )
+            } finally {
+                tmpJar.deleteIfExists()
+            }
+        } finally {
+            cleanup(libTmp)
+        }
+    }
+
+    /**
+     * Writes the files below [start] as jar entries, the manifest first.
+     * With [stored] the entries are not compressed, so classes are read
+     * straight from the (mapped) jar. Entries listed in [order], the class
+     * load order recorded by the launcher, follow the manifest.
+     */
+    private fun ZipOutputStream.writeFileTree(
+        start: Path,
+        stored: Boolean = false,
+        order: List<String> = emptyList()
+    ) {
         val startFullPath = start.toUri().path
+        val entries = mutableListOf<Pair<String, Path?>>()
         Files.walkFileTree(start, object : SimpleFileVisitor<Path>() {
             override fun preVisitDirectory(dir: Path, attrs: BasicFileAttributes) =
                 FileVisitResult.CONTINUE.also {
                     val fullPath = dir.toUri().path
                     val entryName = fullPath.removePrefix(startFullPath)
                     if (entryName.isNotEmpty()) {
-                        putNextEntry(ZipEntry(entryName))
-                        closeEntry()
+                        entries += entryName to null
                     }
                 }
             override fun visitFile(file: Path, attrs: BasicFileAttributes) =
@@ -101,25 +441,120 @@ class KotlinScript(
                     val fullPath = file.toUri().path
                     val entryName = fullPath.removePrefix(startFullPath)
                     if (entryName.isNotEmpty()) {
-                        putNextEntry(ZipEntry(entryName))
-                        file.inputStream().use { `in` ->
-                            `in`.copyTo(this@writeFileTree)
-                        }
-                        closeEntry()
+                        entries += entryName to file
                     }
                 }
         })
+        val rank = order.withIndex().associate { (i, name) -> name to i }
+        entries.sortBy { (entryName, _) ->
+            when (entryName) {
+                "META-INF/" -> -2
+                MANIFEST_PATH -> -1
+                else -> rank[entryName] ?: order.size
+            }
+        }
+        for ((entryName, file) in entries) {
+            val entry = ZipEntry(entryName)
+            if (!stored) {
+                putNextEntry(entry)
+                file?.inputStream()?.use { `in` ->
+                    `in`.copyTo(this@writeFileTree)
+                }
+                closeEntry()
+                continue
+            }
+            val data = file?.readBytes() ?: ByteArray(0)
+            entry.method = ZipEntry.STORED
+            entry.size = data.size.toLong()
+            entry.compressedSize = data.size.toLong()
+            entry.crc = CRC32().also { crc -> crc.update(data) }.value
+            putNextEntry(entry)
+            write(data)
+            closeEntry()
+        }
+    }
+
+    private fun createTmpJar(targetFile: Path, suffix: String): Path {
+        targetFile.parent?.createDirectories()
+        val permissions = PosixFilePermissions.asFileAttribute(
+            setOf(
+                PosixFilePermission.OWNER_READ,
+                PosixFilePermission.OWNER_WRITE
+            )
+        )
+        return try {
+            Files.createTempFile(targetFile.parent, "${targetFile.name}~", suffix, permissions)
+        } catch (_: UnsupportedOperationException) {
+            Files.createTempFile(targetFile.parent, "${targetFile.name}~", suffix)
+        }
+    }
+
+    /**
+     * Adds [metaData] to the jar written by the compiler. The zip file
+     * system copies the compiled entries over without recompressing them.
+     */
+    private fun addToJar(jar: Path, metaData: MetaData) {
+        FileSystems.newFileSystem(jar, null as ClassLoader?).use { fs ->
+            fs.getPath("kotlin_script.metadata").outputStream().use { out ->
+                metaData.store(out)
+            }
+            val manifestFile = fs.getPath(MANIFEST_PATH)
+            if (!manifestFile.exists()) {
+                manifestFile.parent.createDirectories()
+                val manifest = Manifest()
+                manifest.mainAttributes[Attributes.Name.MANIFEST_VERSION] = "1.0"
+                manifestFile.outputStream().use { out ->
+                    manifest.write(out)
+                }
+            }
+        }
+    }
+
+    private fun incrementalStateDir(script: Script): Path {
+        val key = "${script.path.toAbsolutePath().normalize()}\n$kotlinJvmTarget"
+        return localRepo / "org/cikit/kotlin_script_cache" /
+                KOTLIN_SCRIPT_VERSION / "ic" / key.sha256().substring(0, 32)
     }
 
+    private fun String.sha256(): String =
+        MessageDigest.getInstance("SHA-256").digest(encodeToByteArray()).toHex()
+
     fun jarCachePath(metaData: MetaData): Path =
         localRepo / metaData.jarCachePath(kotlinJvmTarget)
 
-    fun compile(script: Script): MetaData {
-        val scriptFileName = script.path.name
-        val scriptFileArgs = when (script.path.extension) {
-            "kt" -> listOf(scriptFileName)
-            else -> emptyList()
+    internal fun updateLaunchIndex(scriptFileSha256: String, metaData: MetaData) {
+        val entry = LaunchIndex.Entry(
+            scriptSha256 = scriptFileSha256,
+            javaVersion = javaVersion,
+            jar = metaData.jarCachePath(kotlinJvmTarget)
+                .invariantSeparatorsPathString,
+            main = metaData.main,
+            classPath = metaData.dep
+                .filterNot { d -> d.scope == Scope.Plugin }
+                .map { d -> d.subPath },
+            inc = metaData.inc.map { s ->
+                s.path.pathString to s.checksum.removePrefix("sha256=")
+            }
+        )
+        try {
+            LaunchIndex.forRepo(localRepo, metaData.kotlinScriptVersion)
+                .update(entry)
+        } catch (ex: IOException) {
+            System.err.println("warning: failed to update launch index: $ex")
         }
+    }
+
+    /**
+     * Serves the local repository as a caching proxy of the maven
+     * repository until the process is terminated.
+     */
+    fun serveRepo(address: InetSocketAddress) {
+        val server = RepoServer(resolver, localRepo, p)
+        server.start(address)
+        System.err.println("serving $localRepo on port ${server.port}")
+    }
+
+    fun compile(script: Script): MetaData {
         val addClassPath = listOf(kotlinStdlibDependency)
         val metaData = parseMetaData(KOTLIN_SCRIPT_VERSION, script).let { md ->
             md.copy(dep = addClassPath + md.dep.map { d ->
@@ -130,135 +565,420 @@ class KotlinScript(
                 }
             })
         }
+        val targetFile = jarCachePath(metaData)
 
-        val compilerDependencies = mutableMapOf<Dependency, Path>()
-        val resolvedDependencies = mutableMapOf<Dependency, Path>()
+        cachedResult(metaData, targetFile)?.let { md ->
+            return withRuntimeJar(md, targetFile)
+        }
 
-        val targetFile = jarCachePath(metaData)
-        if (!force && targetFile.isReadable()) {
-            // only need to fetch runtime dependencies
-            resolver.resolveLibs(
-                emptyList(),
-                metaData.dep
-                    .filterNot { d -> d.scope == Scope.Plugin }
-                    .map { d ->
-                        if (d.version.isBlank()) {
-                            d.copy(version = defaultDependencyVersion(d))
-                        } else {
-                            d
-                        }
-                    },
-                compilerDependencies,
-                resolvedDependencies
-            )
+        // single flight: one process compiles, the others wait for the
+        // lock and then reuse its result
+        return lockFile(
+            targetFile.resolveSibling("${targetFile.name}.lock"),
+            p,
+            "waiting for concurrent compilation of ${script.path.name}"
+        ).use {
+            cachedResult(metaData, targetFile)
+                ?: compileLocked(script, metaData, targetFile)
+        }.let { md -> withRuntimeJar(md, targetFile) }
+    }
+
+    /**
+     * Replaces the compile and runtime dependencies with a single jar of
+     * the classes reachable from the script, see [Shrinker].
+     */
+    private fun withRuntimeJar(metaData: MetaData, targetFile: Path): MetaData {
+        if (!shrink) {
             return metaData
         }
-
-        // copy script to temp dir
-        val tmp = createTempDirectory(script.path.name)
-        Runtime.getRuntime().addShutdownHook(thread(start = false) {
-            cleanup(tmp)
-        })
-        val maxDepth = metaData.inc.maxOfOrNull { inc ->
-            // e.g. ../../../common/util.kt -> 2
-            inc.path.indexOfLast { component -> component.name == ".." }
-        } ?: -1
-        val scriptTmpSubPath = when {
-            maxDepth >= 0 -> {
-                // e.g. maxDepth = 2
-                // /work/kotlin_script/src/main/kotlin/main.kt
-                // -> src/main/kotlin/main.kt
-                val nameCount = script.path.nameCount
-                val scriptSubPath = script.path.subpath(
-                    nameCount - maxDepth - 2,
-                    nameCount
+        val runtimeJar = targetFile.resolveSibling("${targetFile.nameWithoutExtension}-runtime.jar")
+        val dependencies = metaData.dep.filter { d ->
+            d.scope == Scope.Compile || d.scope == Scope.Runtime
+        }
+        if (force || !runtimeJar.isReadable()) {
+            val tmpJar = createTmpJar(runtimeJar, "")
+            try {
+                p.withProgress("shrinking ${dependencies.size} dependencies") {
+                    Shrinker(
+                        scriptJar = targetFile,
+                        classPath = dependencies.map { d -> localRepo / d.subPath },
+                        keep = metaData.keep
+                    ).shrink(tmpJar, stored = jarLayout == "stored")
+                }
+                p.trace("write", runtimeJar.absolutePathString())
+                tmpJar.moveTo(
+                    runtimeJar,
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING
                 )
-                scriptSubPath
+            } catch (ex: Exception) {
+                System.err.println("warning: failed to shrink dependencies: $ex")
+                return metaData
+            } finally {
+                tmpJar.deleteIfExists()
             }
+        }
+        val runtimeDependency = Dependency(
+            groupId = "org.cikit",
+            artifactId = "kotlin_script_cache",
+            version = KOTLIN_SCRIPT_VERSION,
+            classifier = runtimeJar.nameWithoutExtension
+                .removePrefix("kotlin_script_cache-$KOTLIN_SCRIPT_VERSION-"),
+            scope = Scope.Runtime
+        )
+        return metaData.copy(
+            dep = metaData.dep.filter { d -> d.scope == Scope.Plugin } + runtimeDependency,
+            lazy = emptyList()
+        )
+    }
 
-            else -> script.path.fileName
+    /**
+     * Entry names in the order the launcher loaded them on the first run
+     * of the last `stored` jar of [script], see
+     * `launcher/kotlin_script/JarLayout.java`.
+     */
+    private fun loadOrder(script: Script): List<String> {
+        val key = script.path.toAbsolutePath().normalize().toString().sha256()
+        val orderFile = localRepo / "org/cikit/kotlin_script_cache" /
+                KOTLIN_SCRIPT_VERSION / "order" / "${key.substring(0, 32)}.order"
+        return when {
+            jarLayout == "stored" && orderFile.exists() ->
+                orderFile.readLines().filter { line ->
+                    line.isNotBlank() && !line.startsWith("///")
+                }
+            else -> emptyList()
         }
-        val scriptTmpPath = tmp / scriptTmpSubPath
-        val scriptTmpParent = scriptTmpPath.parent
-        val incArgs = p.withProgress("initializing $tmp") {
-            if (tmp != scriptTmpParent && !scriptTmpParent.exists()) {
-                scriptTmpParent.createDirectories()
+    }
+
+    private fun failedCompilationPath(targetFile: Path) =
+        targetFile.resolveSibling("${targetFile.nameWithoutExtension}.failed")
+
+    private fun metaDataWithLib(metaData: MetaData): MetaData =
+        when (val libDependency = libDependency(metaData)) {
+            null -> metaData
+            else -> metaData.copy(dep = metaData.dep + libDependency)
+        }
+
+    private fun cachedResult(metaData: MetaData, targetFile: Path): MetaData? {
+        if (force) {
+            return null
+        }
+        val failedFile = failedCompilationPath(targetFile)
+        if (failedFile.isReadable()) {
+            // replay the diagnostics of the last compilation
+            p.trace("cat", failedFile.absolutePathString())
+            val failure = failedFile.readText()
+            val rc = failure.substringBefore('\n').toIntOrNull()
+            if (rc != null) {
+                val compilerErrors = failure.substringAfter('\n', "")
+                if (compilerErrors.isNotEmpty()) {
+                    System.err.println(compilerErrors)
+                }
+                exitProcess(rc)
             }
-            scriptTmpPath.outputStream().use { out ->
-                out.write(metaData.mainScript.data)
+        }
+        val libJar = libDependency(metaData)?.let { d -> localRepo / d.subPath }
+        if (!targetFile.isReadable() || libJar?.isReadable() == false) {
+            return null
+        }
+        // only need to fetch runtime dependencies
+        val dependencies = metaData.dep
+            .filterNot { d -> d.scope == Scope.Plugin }
+            .map { d ->
+                if (d.version.isBlank()) {
+                    d.copy(version = defaultDependencyVersion(d))
+                } else {
+                    d
+                }
             }
+        resolver.resolveLibs(
+            emptyList(),
+            dependencies.filterNot { d -> lazyFetch && d.scope == Scope.Runtime },
+            mutableMapOf(),
+            mutableMapOf()
+        )
+        return metaDataWithLib(metaData).copy(
+            lazy = lazyDependencies(dependencies.filter { d -> d.scope == Scope.Runtime })
+        )
+    }
 
-            // copy inc to temp dir
-            metaData.inc.map { inc ->
-                val tmpIncFile = scriptTmpParent / inc.path
-                val tmpIncParent = tmpIncFile.parent
-                if (tmp != tmpIncParent) {
-                    tmpIncParent.createDirectories()
-                }
-                tmpIncFile.outputStream().use { out ->
-                    out.write(inc.data)
+    /**
+     * The package index of each runtime dependency, so the launcher can
+     * start without them and fetch them on first use. Dependencies missing
+     * in the local repository are indexed from their central directory,
+     * read with range requests, and only fetched when the repository does
+     * not support them or publishes no checksum.
+     */
+    private fun lazyDependencies(runtimeDependencies: List<Dependency>): List<LazyDependency> {
+        if (!lazyFetch) {
+            return emptyList()
+        }
+        return runtimeDependencies.map { d ->
+            val remote = when {
+                (localRepo / d.subPath).exists() -> null
+                else -> (d.sha256 ?: resolver.upstreamSha256(d))?.let { sha256 ->
+                    resolver.remoteEntries(d)
+                        ?.takeIf { (size, _) -> d.size == null || d.size == size }
+                        ?.let { (size, names) ->
+                            LazyDependency(
+                                subPath = d.subPath,
+                                sha256 = sha256,
+                                size = size,
+                                packages = LazyDependency.packagesOf(names.asSequence())
+                            )
+                        }
                 }
-                inc.path.pathString
+            }
+            remote ?: run {
+                val resolved = mutableMapOf<Dependency, Path>()
+                resolver.resolveLibs(
+                    emptyList(),
+                    listOf(d),
+                    mutableMapOf(),
+                    resolved,
+                    showProgress = false
+                )
+                val f = resolved.getValue(d)
+                LazyDependency(
+                    subPath = d.subPath,
+                    sha256 = resolver.sha256(d, f),
+                    size = f.fileSize(),
+                    packages = LazyDependency.packagesOf(f)
+                )
             }
         }
+    }
 
-        // call compiler
-        val (rc, compilerErrors) = if (scriptFileArgs.isNotEmpty()
-                || incArgs.isNotEmpty()) {
-            resolver.resolveLibs(
-                compilerClassPath,
-                metaData.dep.map { d ->
+    private fun compileLocked(
+        script: Script,
+        metaData: MetaData,
+        targetFile: Path
+    ): MetaData {
+        val scriptFileName = script.path.name
+        val scriptFileArgs = when (script.path.extension) {
+            "kt" -> listOf(scriptFileName)
+            else -> emptyList()
+        }
+        val compilerDependencies = mutableMapOf<Dependency, Path>()
+        val resolvedDependencies = mutableMapOf<Dependency, Path>()
+
+        val libDependency = libDependency(metaData)
+        val libJar = libDependency?.let { d -> localRepo / d.subPath }
+        val failedFile = failedCompilationPath(targetFile)
+        val sources = scriptFileArgs.map { f ->
+            f to metaData.mainScript.checksum
+        } + metaData.inc.filterNot { inc ->
+            inc.path in metaData.lib
+        }.map { inc ->
+            inc.path.pathString to inc.checksum
+        }
+        // compile the sources in place straight into the jar, as long as
+        // it is used as the compiler writes it (the stored layout is applied
+        // to a staged compilation); that rules out incremental compilation,
+        // which keeps the classes of the previous one
+        val direct = jarOutput == "direct" && sources.isNotEmpty() && jarLayout != "stored"
+        val incremental = incrementalCompile && !direct && !force && sources.size >= 2
+        val directJar = when {
+            direct -> createTmpJar(targetFile, ".jar")
+            else -> null
+        }
+
+        // copy script to temp dir
+        val tmp = when (directJar) {
+            null -> createTempDirectory(script.path.name)
+            else -> null
+        }
+        val cleanupHook = thread(start = false) {
+            directJar?.deleteIfExists()
+            tmp?.let { dir -> cleanup(dir) }
+        }
+        Runtime.getRuntime().addShutdownHook(cleanupHook)
+        // the hook only covers System.exit outside of a daemon session
+        try {
+            val maxDepth = metaData.inc.maxOfOrNull { inc ->
+                // e.g. ../../../common/util.kt -> 2
+                inc.path.indexOfLast { component -> component.name == ".." }
+            } ?: -1
+            val scriptTmpSubPath = when {
+                maxDepth >= 0 -> {
+                    // e.g. maxDepth = 2
+                    // /work/kotlin_script/src/main/kotlin/main.kt
+                    // -> src/main/kotlin/main.kt
+                    val nameCount = script.path.nameCount
+                    val scriptSubPath = script.path.subpath(
+                        nameCount - maxDepth - 2,
+                        nameCount
+                    )
+                    scriptSubPath
+                }
+
+                else -> script.path.fileName
+            }
+            val scriptTmpPath = tmp?.resolve(scriptTmpSubPath)
+            val sourceDir = scriptTmpPath?.parent ?: script.path.toAbsolutePath().parent
+            val incArgs = if (tmp == null || scriptTmpPath == null) {
+                metaData.inc.map { inc -> inc.path.pathString }
+            } else p.withProgress("initializing $tmp") {
+                val scriptTmpParent = scriptTmpPath.parent
+                if (tmp != scriptTmpParent && !scriptTmpParent.exists()) {
+                    scriptTmpParent.createDirectories()
+                }
+                scriptTmpPath.outputStream().use { out ->
+                    out.write(metaData.mainScript.data)
+                }
+
+                // copy inc to temp dir
+                metaData.inc.map { inc ->
+                    val tmpIncFile = scriptTmpParent / inc.path
+                    val tmpIncParent = tmpIncFile.parent
+                    if (tmp != tmpIncParent) {
+                        tmpIncParent.createDirectories()
+                    }
+                    tmpIncFile.outputStream().use { out ->
+                        out.write(inc.data)
+                    }
+                    inc.path.pathString
+                }
+            }
+
+            // call compiler
+            var lazy = emptyList<LazyDependency>()
+            val (rc, compilerErrors) = if (scriptFileArgs.isNotEmpty()
+                    || incArgs.isNotEmpty()) {
+                val dependencies = metaData.dep.map { d ->
                     if (d.version.isBlank()) {
                         d.copy(version = defaultDependencyVersion(d))
                     } else {
                         d
                     }
-                },
-                compilerDependencies,
-                resolvedDependencies
-            )
-            val kotlinCompilerArgs = kotlinCompilerArgs(
-                compilerDependencies.map { (_, f) -> f.toAbsolutePath() },
-                resolvedDependencies
-                    .filter { (d, _) -> d.scope == Scope.Plugin }
+                }
+                // runtime dependencies are not needed to compile, fetch (or
+                // index) them while compiling
+                val runtimeDependencies = dependencies.filter { d -> d.scope == Scope.Runtime }
+                var runtimeFetchFailure: Throwable? = null
+                val runtimeFetch = if (runtimeDependencies.isEmpty()) {
+                    null
+                } else {
+                    thread(name = "FetchRuntime", isDaemon = true) {
+                        try {
+                            if (lazyFetch) {
+                                lazy = lazyDependencies(runtimeDependencies)
+                            } else {
+                                resolver.resolveLibs(
+                                    emptyList(),
+                                    runtimeDependencies,
+                                    mutableMapOf(),
+                                    mutableMapOf(),
+                                    showProgress = false
+                                )
+                            }
+                        } catch (ex: Throwable) {
+                            runtimeFetchFailure = ex
+                        }
+                    }
+                }
+                resolver.resolveLibs(
+                    compilerClassPath,
+                    dependencies.filterNot { d -> d.scope == Scope.Runtime },
+                    compilerDependencies,
+                    resolvedDependencies
+                )
+                val compilerDependencyPaths = compilerDependencies
                     .map { (_, f) -> f.toAbsolutePath() }
-            )
-            val compileClassPath = resolvedDependencies
-                .filter { (d, _) -> d.scope == Scope.Compile }
-                .map { (_, f) -> f.toAbsolutePath() }
-            val compileClassPathArgs = when {
-                compileClassPath.isEmpty() -> emptyList()
-                else -> listOf(
-                    "-cp",
-                    compileClassPath.joinToString(File.pathSeparator)
+                val kotlinCompilerArgs = kotlinCompilerArgs(
+                    resolvedDependencies
+                        .filter { (d, _) -> d.scope == Scope.Plugin }
+                        .map { (_, f) -> f.toAbsolutePath() }
                 )
-            }
-            val compilerArgs: List<String> = listOf(
-                *kotlinCompilerArgs,
-                *metaData.compilerArgs.toTypedArray(),
-                *compileClassPathArgs.toTypedArray(),
-                "-d", tmp.toAbsolutePath().toString(),
-                *scriptFileArgs.toTypedArray(),
-                *incArgs.toTypedArray()
-            )
-            p.trace(*compilerArgs.toTypedArray())
-            p.withProgress("compiling ${(scriptFileArgs + incArgs).first()}") {
-                val compilerLog = scriptTmpParent / "kotlin_script.log"
-                val compilerProcess = ProcessBuilder(compilerArgs)
-                    .directory(scriptTmpParent.toFile())
-                    .redirectErrorStream(true)
-                    .redirectOutput(compilerLog.toFile())
-                    .start()
-                compilerProcess.outputStream.close()
-                val rc = compilerProcess.waitFor()
-                val compilerErrors = compilerLog.readText()
-                rc to compilerErrors
-            }
-        } else {
-            // only need to fetch runtime dependencies
-            resolver.resolveLibs(
-                emptyList(),
-                metaData.dep
+                val compileClassPath = resolvedDependencies
+                    .filter { (d, _) -> d.scope == Scope.Compile }
+                    .map { (_, f) -> f.toAbsolutePath() }
+                if (libDependency != null && libJar != null) {
+                    buildLibrary(
+                        metaData,
+                        failedFile,
+                        libJar,
+                        compilerDependencyPaths,
+                        listOf(
+                            *kotlinCompilerArgs,
+                            *metaData.compilerArgs.toTypedArray(),
+                            *when {
+                                compileClassPath.isEmpty() -> emptyArray()
+                                else -> arrayOf(
+                                    "-cp",
+                                    compileClassPath.joinToString(File.pathSeparator)
+                                )
+                            },
+                            "-module-name",
+                            libJar.nameWithoutExtension.replace(Regex("[^A-Za-z0-9_.-]"), "_")
+                        )
+                    )
+                }
+                val libClassPath = listOfNotNull(libJar?.toAbsolutePath())
+                val compiler = IncrementalCompiler.Compiler { extraClassPath, sources ->
+                    val classPath = compileClassPath + libClassPath + extraClassPath
+                    val compilerArgs: List<String> = listOf(
+                        *kotlinCompilerArgs,
+                        *metaData.compilerArgs.toTypedArray(),
+                        *when {
+                            classPath.isEmpty() -> emptyArray()
+                            else -> arrayOf(
+                                "-cp",
+                                classPath.joinToString(File.pathSeparator)
+                            )
+                        },
+                        *when {
+                            // internal declarations stay visible
+                            libClassPath.isEmpty() && extraClassPath.isEmpty() ->
+                                emptyArray()
+                            else -> arrayOf(
+                                "-Xfriend-paths=" + (libClassPath + extraClassPath)
+                                    .joinToString(",") { f -> f.absolutePathString() }
+                            )
+                        },
+                        "-d", (directJar ?: tmp!!).toAbsolutePath().toString(),
+                    )
+                    runCompiler(
+                        compilerDependencyPaths,
+                        compilerArgs,
+                        sources,
+                        sourceDir
+                    )
+                }
+                val result = p.withProgress("compiling ${sources.firstOrNull()?.first}") {
+                    if (sources.isEmpty()) {
+                        0 to ""
+                    } else if (!incremental) {
+                        compiler.compile(emptyList(), sources.map { (f, _) -> f })
+                    } else {
+                        val argsKey = listOf(
+                            KOTLIN_SCRIPT_VERSION,
+                            *kotlinCompilerArgs,
+                            *metaData.compilerArgs.toTypedArray(),
+                            *(compileClassPath + libClassPath)
+                                .map { f -> f.pathString }.toTypedArray()
+                        ).joinToString("\n").sha256()
+                        IncrementalCompiler(incrementalStateDir(script), p).compile(
+                            sources = sources.toMap(),
+                            argsKey = argsKey,
+                            outputDir = tmp!!,
+                            compiler = compiler
+                        )
+                    }
+                }
+                if (runtimeFetch != null) {
+                    p.withProgress("fetching runtime dependencies") {
+                        runtimeFetch.join()
+                    }
+                }
+                // compiler diagnostics take precedence
+                if (result.first == 0) {
+                    runtimeFetchFailure?.let { ex -> throw ex }
+                }
+                result
+            } else {
+                // only need to fetch runtime dependencies
+                val dependencies = metaData.dep
                     .filterNot { d -> d.scope == Scope.Plugin }
                     .map { d ->
                         if (d.version.isBlank()) {
@@ -266,63 +986,91 @@ class KotlinScript(
                         } else {
                             d
                         }
-                    },
-                compilerDependencies,
-                resolvedDependencies
-            )
-            0 to ""
-        }
+                    }
+                resolver.resolveLibs(
+                    emptyList(),
+                    dependencies.filterNot { d -> lazyFetch && d.scope == Scope.Runtime },
+                    compilerDependencies,
+                    resolvedDependencies
+                )
+                lazy = lazyDependencies(dependencies.filter { d -> d.scope == Scope.Runtime })
+                0 to ""
+            }
 
-        if (rc != 0) {
-            System.err.println(compilerErrors)
-            exitProcess(rc)
-        }
+            if (rc != 0) {
+                compilationFailed(failedFile, rc, compilerErrors)
+            }
+            failedFile.deleteIfExists()
+            val resultMetaData = metaDataWithLib(metaData).copy(lazy = lazy)
 
-        // embed metadata into jar
-        p.trace("write", (tmp / "kotlin_script.metadata").absolutePathString())
-        metaData.storeToFile(tmp / "kotlin_script.metadata")
-        val manifestFile = tmp.resolve(MANIFEST_PATH)
-        val manifest = when {
-            manifestFile.exists() ->
-                manifestFile.inputStream().use { `in` ->
-                    Manifest(`in`)
+            if (directJar != null) {
+                // the jar is addressed by the checksums read before compiling
+                sources.forEach { (f, checksum) ->
+                    if (loadScript(sourceDir / f).checksum != checksum) {
+                        error("$f changed during compilation")
+                    }
                 }
-            else -> Manifest()
-        }
-        manifest.mainAttributes.apply {
-            Attributes.Name.MANIFEST_VERSION.let { key ->
-                if (!contains(key)) put(key, "1.0")
+                p.trace("write", targetFile.absolutePathString())
+                addToJar(directJar, resultMetaData)
+                directJar.moveTo(
+                    targetFile,
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING
+                )
+                return resultMetaData
             }
-        }
-        manifestFile.parent?.createDirectories()
-        manifestFile.outputStream().use { out ->
-            manifest.write(out)
-        }
+            checkNotNull(tmp)
 
-        targetFile.parent?.createDirectories()
-        val permissions = PosixFilePermissions.asFileAttribute(
-            setOf(
-                PosixFilePermission.OWNER_READ,
-                PosixFilePermission.OWNER_WRITE
-            )
-        )
-        try {
-            Files.createFile(targetFile, permissions)
-        } catch (_: UnsupportedOperationException) {
-        } catch (_: java.nio.file.FileAlreadyExistsException) {
-            targetFile.setPosixFilePermissions(permissions.value())
-        }
-        p.trace("write", targetFile.absolutePathString())
-        targetFile.outputStream().use { out ->
-            ZipOutputStream(out).use { zout ->
-                zout.writeFileTree(tmp)
-                zout.finish()
+            // embed metadata into jar
+            p.trace("write", (tmp / "kotlin_script.metadata").absolutePathString())
+            resultMetaData.storeToFile(tmp / "kotlin_script.metadata")
+            val manifestFile = tmp.resolve(MANIFEST_PATH)
+            val manifest = when {
+                manifestFile.exists() ->
+                    manifestFile.inputStream().use { `in` ->
+                        Manifest(`in`)
+                    }
+                else -> Manifest()
+            }
+            manifest.mainAttributes.apply {
+                Attributes.Name.MANIFEST_VERSION.let { key ->
+                    if (!contains(key)) put(key, "1.0")
+                }
+            }
+            manifestFile.parent?.createDirectories()
+            manifestFile.outputStream().use { out ->
+                manifest.write(out)
             }
-        }
 
-        cleanup(tmp)
+            // readers never see a partially written jar
+            val tmpJar = createTmpJar(targetFile, "")
+            try {
+                p.trace("write", targetFile.absolutePathString())
+                tmpJar.outputStream().use { out ->
+                    ZipOutputStream(out).use { zout ->
+                        zout.writeFileTree(
+                            tmp,
+                            stored = jarLayout == "stored",
+                            order = loadOrder(script)
+                        )
+                        zout.finish()
+                    }
+                }
+                tmpJar.moveTo(
+                    targetFile,
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING
+                )
+            } finally {
+                tmpJar.deleteIfExists()
+            }
 
-        return metaData
+            return resultMetaData
+        } finally {
+            directJar?.deleteIfExists()
+            tmp?.let { dir -> cleanup(dir) }
+            Runtime.getRuntime().removeShutdownHook(cleanupHook)
+        }
     }
 
     companion object {
@@ -452,6 +1200,24 @@ class KotlinScript(
 
         private const val MANIFEST_PATH = "META-INF/MANIFEST.MF"
 
+        private const val COMPILATION_ERROR = 1
+
+        // typical heap of a compiler jvm
+        private const val COMPILER_MEMORY = 1536L * 1024L * 1024L
+
+        private fun defaultCompileSlots(): Int {
+            val cpus = Runtime.getRuntime().availableProcessors()
+            val memory = try {
+                (ManagementFactory.getOperatingSystemMXBean()
+                        as? com.sun.management.OperatingSystemMXBean)
+                    ?.totalPhysicalMemorySize
+            } catch (_: LinkageError) {
+                null
+            }
+            val byMemory = memory?.let { m -> (m / COMPILER_MEMORY).toInt() } ?: cpus
+            return maxOf(1, minOf(cpus, byMemory))
+        }
+
         private fun cleanup(dir: Path) {
             if (!dir.exists()) {
                 return
@@ -494,8 +1260,25 @@ class KotlinScript(
             )
             val metaData = kotlinScript.compile(script)
             metaData.storeToFile(scriptMetadata)
+            kotlinScript.updateLaunchIndex(scriptFileSha256, metaData)
             return kotlinScript.jarCachePath(metaData)
         }
 
+        @JvmStatic
+        @JvmName("serveRepo")
+        internal fun serveRepo(address: String) {
+            val flags = System.getProperty("kotlin_script.flags") ?: ""
+            val host = address.substringBeforeLast(':', "")
+            val port = address.substringAfterLast(':').toIntOrNull()
+                ?: throw IllegalArgumentException("invalid address: $address")
+            KotlinScript(trace = "-x" in flags).serveRepo(
+                if (host.isEmpty()) {
+                    InetSocketAddress(port)
+                } else {
+                    InetSocketAddress(host, port)
+                }
+            )
+        }
+
     }
 }
@@ -0,0 +1,103 @@
+package kotlin_script
+
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.nio.file.Path
+import kotlin.io.path.div
+import kotlin.io.path.exists
+
+/**
+ * Memory-mapped index from script sha256 to everything the launcher needs
+ * to start a cached script: jar, main class and class path. Entries are
+ * written after each compilation and read by `Launcher.executeIndexedJar`.
+ *
+ * The index is split into 256 buckets by the first byte of the script
+ * sha256 (`<dir>/<xx>.index`), so a lookup only reads the entries of one
+ * bucket. When [localRepo] is given, entries of jars that no longer exist
+ * are dropped on compaction.
+ */
+internal class LaunchIndex(
+    private val dir: Path,
+    private val localRepo: Path? = null
+) {
+
+    class Entry(
+        val scriptSha256: String,
+        val javaVersion: String,
+        val jar: String,
+        val main: String,
+        val classPath: List<String>,
+        val inc: List<Pair<String, String>>
+    )
+
+    private fun log(scriptSha256: String) =
+        RecordLog(dir / "${scriptSha256.substring(0, 2).lowercase()}.index", MAGIC)
+
+    fun find(scriptSha256: String, javaVersion: String): Entry? {
+        val key = Key(scriptSha256.hexToBytes(), javaVersion)
+        return log(scriptSha256).read().lastOrNull { r ->
+            keyOf(r.duplicate()) == key
+        }?.let { r -> decode(r.duplicate()) }
+    }
+
+    fun update(entry: Entry) {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { out ->
+            out.write(entry.scriptSha256.hexToBytes())
+            out.writeString(entry.javaVersion)
+            out.writeString(entry.jar)
+            out.writeString(entry.main)
+            out.writeShort(entry.classPath.size)
+            entry.classPath.forEach { out.writeString(it) }
+            out.writeShort(entry.inc.size)
+            entry.inc.forEach { (path, sha256) ->
+                out.writeString(path)
+                out.write(sha256.hexToBytes())
+            }
+        }
+        log(entry.scriptSha256).append(bytes.toByteArray(), ::keyOf, ::isLive)
+    }
+
+    private fun isLive(r: ByteBuffer): Boolean {
+        val repo = localRepo ?: return true
+        return (repo / decode(r).jar).exists()
+    }
+
+    private data class Key(val sha256: List<Byte>, val javaVersion: String) {
+        constructor(sha256: ByteArray, javaVersion: String) :
+                this(sha256.toList(), javaVersion)
+    }
+
+    private fun keyOf(r: ByteBuffer): Key {
+        val sha256 = ByteArray(32)
+        r.get(sha256)
+        return Key(sha256, r.getString())
+    }
+
+    private fun decode(r: ByteBuffer): Entry {
+        val sha256 = ByteArray(32)
+        r.get(sha256)
+        val javaVersion = r.getString()
+        val jar = r.getString()
+        val main = r.getString()
+        val classPath = List(r.short.toInt() and 0xFFFF) { r.getString() }
+        val inc = List(r.short.toInt() and 0xFFFF) {
+            val path = r.getString()
+            val incSha256 = ByteArray(32)
+            r.get(incSha256)
+            path to incSha256.toHex()
+        }
+        return Entry(sha256.toHex(), javaVersion, jar, main, classPath, inc)
+    }
+
+    companion object {
+        // "KSLI"
+        private const val MAGIC = 0x4b534c49
+
+        fun forRepo(localRepo: Path, kotlinScriptVersion: String) = LaunchIndex(
+            localRepo / "org/cikit/kotlin_script_cache" / kotlinScriptVersion / "index",
+            localRepo
+        )
+    }
+}
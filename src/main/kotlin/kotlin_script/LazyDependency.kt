@@ -0,0 +1,52 @@
+package kotlin_script
+
+import java.nio.file.Path
+import java.util.zip.ZipFile
+
+/**
+ * A runtime dependency that the launcher fetches (and verifies against
+ * [sha256] and [size]) only when a class or resource in one of its
+ * [packages] is first requested, see `launcher/kotlin_script/LazyClassLoader.java`.
+ *
+ * Packages are the directories of the jar entries, `.` for the root.
+ * Service files are listed by their entry name, so a service lookup only
+ * fetches the jars providing that service.
+ */
+data class LazyDependency(
+    val subPath: String,
+    val sha256: String,
+    val size: Long,
+    val packages: List<String>,
+) {
+    fun toSpec(): String =
+        "$subPath sha256=$sha256 $size ${packages.joinToString(",")}"
+
+    companion object {
+        private const val SERVICES = "META-INF/services/"
+
+        internal fun packagesOf(jar: Path): List<String> =
+            ZipFile(jar.toFile()).use { zf ->
+                packagesOf(zf.entries().asSequence().map { entry -> entry.name })
+            }
+
+        internal fun packagesOf(names: Sequence<String>): List<String> =
+            names
+                .filterNot { name -> name.endsWith("/") || isShared(name) }
+                .map { name ->
+                    when {
+                        name.startsWith(SERVICES) -> name
+                        else -> name.substringBeforeLast('/', ".")
+                    }
+                }
+                .distinct()
+                .sorted()
+                .toList()
+
+        // present in most jars, a lookup must not fetch them all
+        private fun isShared(name: String) =
+            name == "module-info.class" ||
+                    name.substringBeforeLast('/', "") == "META-INF" ||
+                    name.startsWith("META-INF/versions/") ||
+                    name.startsWith("META-INF/maven/")
+    }
+}
@@ -0,0 +1,218 @@
+package kotlin_script
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.OverlappingFileLockException
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+import kotlin.io.path.*
+
+/**
+ * Binary append-only record file shared between concurrent processes.
+ *
+ * Layout: `magic:int version:int` followed by records of
+ * `length:int payload:byte[length] crc32:int`. Readers map the file
+ * without locking and stop at the first incomplete or corrupt record,
+ * writers serialize on a sibling `.lock` file. When a record key is
+ * written again, the last record wins.
+ *
+ * The format is also read (and written) by the java launcher, see
+ * `launcher/kotlin_script/RecordLog.java`.
+ */
+internal class RecordLog(
+    private val file: Path,
+    private val magic: Int,
+    private val version: Int = 1
+) {
+    private val lockFile = file.resolveSibling("${file.name}.lock")
+
+    fun read(): List<ByteBuffer> {
+        val buffer = try {
+            FileChannel.open(file, StandardOpenOption.READ).use { ch ->
+                ch.map(FileChannel.MapMode.READ_ONLY, 0L, ch.size())
+            }
+        } catch (_: NoSuchFileException) {
+            return emptyList()
+        }
+        return parse(buffer).first
+    }
+
+    /**
+     * Appends [record] while holding the write lock. The file is rewritten
+     * (compacted) when it contains more superseded or dead records (see
+     * [isLive]) than live ones.
+     */
+    fun <K> append(
+        record: ByteArray,
+        keyOf: (ByteBuffer) -> K,
+        isLive: (ByteBuffer) -> Boolean = { true }
+    ) {
+        file.parent?.createDirectories()
+        withWriteLock {
+            val (records, validSize) = try {
+                FileChannel.open(file, StandardOpenOption.READ).use { ch ->
+                    parse(ch.map(FileChannel.MapMode.READ_ONLY, 0L, ch.size()))
+                }
+            } catch (_: NoSuchFileException) {
+                emptyList<ByteBuffer>() to 0L
+            }
+            val newKey = keyOf(ByteBuffer.wrap(record))
+            val live = LinkedHashMap<K, ByteBuffer>()
+            for (r in records) {
+                val key = keyOf(r.duplicate())
+                if (isLive(r.duplicate())) {
+                    live[key] = r
+                } else {
+                    live.remove(key)
+                }
+            }
+            live.remove(newKey)
+            if (records.size >= COMPACT_MIN_RECORDS &&
+                records.size - live.size > live.size) {
+                rewrite(live.values + ByteBuffer.wrap(record))
+            } else {
+                FileChannel.open(
+                    file,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE
+                ).use { ch ->
+                    // drop a torn tail left behind by a crashed writer
+                    if (validSize == 0L) {
+                        ch.truncate(0L)
+                        ch.writeFully(header())
+                    } else {
+                        ch.truncate(validSize)
+                        ch.position(validSize)
+                    }
+                    ch.writeFully(frame(ByteBuffer.wrap(record)))
+                    ch.force(false)
+                }
+            }
+        }
+    }
+
+    private fun rewrite(records: Collection<ByteBuffer>) {
+        val tmp = createTempFile(file.parent, "${file.name}~", "")
+        try {
+            FileChannel.open(tmp, StandardOpenOption.WRITE).use { ch ->
+                ch.writeFully(header())
+                for (r in records) {
+                    ch.writeFully(frame(r.duplicate()))
+                }
+                ch.force(false)
+            }
+            tmp.moveTo(
+                file,
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING
+            )
+        } finally {
+            tmp.deleteIfExists()
+        }
+    }
+
+    private inline fun withWriteLock(block: () -> Unit) {
+        FileChannel.open(
+            lockFile,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE
+        ).use { ch ->
+            while (true) {
+                val lock = try {
+                    ch.lock()
+                } catch (_: OverlappingFileLockException) {
+                    // held by another thread of this jvm
+                    Thread.sleep(10L)
+                    continue
+                }
+                try {
+                    block()
+                } finally {
+                    lock.release()
+                }
+                break
+            }
+        }
+    }
+
+    private fun header(): ByteBuffer = ByteBuffer.allocate(8).apply {
+        putInt(magic)
+        putInt(version)
+        flip()
+    }
+
+    private fun frame(payload: ByteBuffer): ByteBuffer {
+        val crc = CRC32()
+        crc.update(payload.duplicate())
+        return ByteBuffer.allocate(payload.remaining() + 8).apply {
+            putInt(payload.remaining())
+            put(payload)
+            putInt(crc.value.toInt())
+            flip()
+        }
+    }
+
+    private fun parse(buffer: ByteBuffer): Pair<List<ByteBuffer>, Long> {
+        if (buffer.remaining() < 8 ||
+            buffer.getInt(0) != magic ||
+            buffer.getInt(4) != version) {
+            return emptyList<ByteBuffer>() to 0L
+        }
+        val result = mutableListOf<ByteBuffer>()
+        var pos = 8
+        val limit = buffer.limit()
+        while (pos + 8 <= limit) {
+            val length = buffer.getInt(pos)
+            if (length < 0 || length > limit - pos - 8) {
+                break
+            }
+            val payload = (buffer.duplicate().position(pos + 4) as ByteBuffer)
+                .slice()
+                .limit(length) as ByteBuffer
+            val crc = CRC32()
+            crc.update(payload.duplicate())
+            if (crc.value.toInt() != buffer.getInt(pos + 4 + length)) {
+                break
+            }
+            result += payload
+            pos += length + 8
+        }
+        return result to pos.toLong()
+    }
+
+    private fun FileChannel.writeFully(buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) {
+            write(buffer)
+        }
+    }
+
+    companion object {
+        private const val COMPACT_MIN_RECORDS = 64
+    }
+}
+
+internal fun ByteBuffer.getString(): String {
+    val bytes = ByteArray(short.toInt() and 0xFFFF)
+    get(bytes)
+    return String(bytes, Charsets.UTF_8)
+}
+
+internal fun java.io.DataOutputStream.writeString(value: String) {
+    val bytes = value.toByteArray(Charsets.UTF_8)
+    require(bytes.size <= 0xFFFF) { "string too long: $value" }
+    writeShort(bytes.size)
+    write(bytes)
+}
+
+internal fun String.hexToBytes(): ByteArray {
+    require(length % 2 == 0) { "invalid hex string: $this" }
+    return ByteArray(length / 2) { i ->
+        substring(i * 2, i * 2 + 2).toInt(16).toByte()
+    }
+}
+
+internal fun ByteArray.toHex(): String =
+    joinToString("") { x -> String.format("%02x", x) }
@@ -0,0 +1,211 @@
+package kotlin_script
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import kotlin.io.path.*
+
+/**
+ * Caching maven2 repository proxy.
+ *
+ * Serves artifacts from the local repository. Misses are resolved with
+ * [resolver], i.e. copied from the local mirror or fetched from the
+ * upstream repository into the local repository. Upstream artifacts are
+ * verified against the upstream `.sha256` (or `.sha1`) checksum file, and
+ * artifacts without one are neither cached nor served.
+ */
+internal class RepoServer(
+    private val resolver: Resolver,
+    private val localRepo: Path,
+    private val p: Progress,
+) {
+    private lateinit var server: HttpServer
+    private lateinit var executor: ExecutorService
+
+    val port: Int
+        get() = server.address.port
+
+    fun start(address: InetSocketAddress) {
+        executor = Executors.newCachedThreadPool()
+        server = HttpServer.create(address, 0).apply {
+            createContext("/") { exchange ->
+                try {
+                    handle(exchange)
+                } finally {
+                    exchange.close()
+                }
+            }
+            executor = this@RepoServer.executor
+            start()
+        }
+        p.trace("serving", localRepo.absolutePathString(), "on", server.address.toString())
+    }
+
+    fun stop() {
+        server.stop(0)
+        executor.shutdown()
+    }
+
+    private fun handle(exchange: HttpExchange) {
+        val method = exchange.requestMethod
+        if (method != "GET" && method != "HEAD") {
+            exchange.sendResponseHeaders(405, -1L)
+            return
+        }
+        val dep = exchange.requestURI.path
+            .removePrefix("/")
+            .takeIf { path -> isValidSubPath(path) }
+            ?.let { path -> parseSubPath(path) }
+        if (dep == null) {
+            exchange.sendResponseHeaders(400, -1L)
+            return
+        }
+        val f = try {
+            resolve(dep)
+        } catch (_: FileNotFoundException) {
+            p.trace("not found:", dep.subPath)
+            null
+        } catch (ex: Exception) {
+            System.err.println("error: ${dep.subPath}: $ex")
+            exchange.sendResponseHeaders(502, -1L)
+            return
+        }
+        if (f == null) {
+            exchange.sendResponseHeaders(404, -1L)
+            return
+        }
+        exchange.responseHeaders.add("Content-Type", "application/octet-stream")
+        if (method == "HEAD") {
+            exchange.responseHeaders.add("Content-Length", f.fileSize().toString())
+            exchange.sendResponseHeaders(200, -1L)
+            return
+        }
+        f.inputStream().use { `in` ->
+            // 0 would select chunked encoding
+            exchange.sendResponseHeaders(200, f.fileSize().takeIf { n -> n > 0L } ?: -1L)
+            exchange.responseBody.use { out ->
+                `in`.copyTo(out, FETCH_BUFFER_SIZE)
+            }
+        }
+    }
+
+    private fun resolve(dep: Dependency): Path? {
+        val f = localRepo / dep.subPath
+        if (f.isRegularFile()) {
+            return f
+        }
+        if (isChecksum(dep)) {
+            return fetch(dep)
+        }
+        val sha256 = upstreamChecksum(dep, "sha256")
+        if (sha256 != null) {
+            return fetch(dep.copy(sha256 = sha256))
+        }
+        val sha1 = upstreamChecksum(dep, "sha1")
+            ?: throw IOException("no upstream checksum for ${dep.subPath}")
+        val result = fetch(dep)
+        if (result.digest("SHA-1") != sha1) {
+            result.deleteIfExists()
+            throw IOException("unexpected sha1 for ${dep.subPath}")
+        }
+        return result
+    }
+
+    private fun fetch(dep: Dependency): Path {
+        val resolved = mutableMapOf<Dependency, Path>()
+        resolver.resolveLibs(
+            emptyList(),
+            listOf(dep),
+            mutableMapOf(),
+            resolved,
+            showProgress = false
+        )
+        return resolved.getValue(dep)
+    }
+
+    private fun upstreamChecksum(dep: Dependency, algorithm: String): String? {
+        val checksumFile = try {
+            fetch(dep.copy(type = "${dep.type}.$algorithm"))
+        } catch (_: FileNotFoundException) {
+            return null
+        }
+        return checksumFile.readText()
+            .trim()
+            .split(Regex("\\s+"), limit = 2)
+            .first()
+            .lowercase()
+            .takeIf { checksum -> checksum.matches(Regex("[0-9a-f]+")) }
+    }
+
+    private fun Path.digest(algorithm: String): String {
+        val md = MessageDigest.getInstance(algorithm)
+        inputStream().use { `in` ->
+            val buffer = ByteArray(FETCH_BUFFER_SIZE)
+            while (true) {
+                val n = `in`.read(buffer)
+                if (n < 0) break
+                md.update(buffer, 0, n)
+            }
+        }
+        return md.digest().toHex()
+    }
+
+    companion object {
+        private const val FETCH_BUFFER_SIZE = 64 * 1024
+
+        private val checksumTypes = listOf("md5", "sha1", "sha256", "sha512", "asc")
+
+        private fun isChecksum(dep: Dependency) =
+            checksumTypes.any { ext -> dep.type.endsWith(".$ext") }
+
+        /**
+         * Rejects empty, relative and hidden path components as well as
+         * the compiled scripts and lock and part files in the local repo.
+         */
+        internal fun isValidSubPath(path: String): Boolean {
+            val components = path.split('/')
+            return components.size >= 4 &&
+                    components.none { c -> c.isEmpty() || c.startsWith(".") || '\\' in c } &&
+                    !path.startsWith("org/cikit/kotlin_script_cache/") &&
+                    !path.endsWith(".lock") &&
+                    !path.endsWith(".part")
+        }
+
+        /**
+         * Maps `group/artifact/version/artifact-version[-classifier].type`
+         * back to a [Dependency] with the same [Dependency.subPath].
+         */
+        internal fun parseSubPath(path: String): Dependency? {
+            val components = path.split('/')
+            if (components.size < 4) {
+                return null
+            }
+            val fileName = components[components.size - 1]
+            val version = components[components.size - 2]
+            val artifactId = components[components.size - 3]
+            val groupId = components.subList(0, components.size - 3).joinToString(".")
+            val rest = fileName.removePrefix("$artifactId-$version")
+            val dep = when {
+                rest == fileName -> null
+                rest.startsWith(".") && rest.length > 1 ->
+                    Dependency(groupId, artifactId, version, type = rest.substring(1))
+                rest.startsWith("-") && rest.indexOf('.') > 1 ->
+                    Dependency(
+                        groupId,
+                        artifactId,
+                        version,
+                        classifier = rest.substring(1, rest.indexOf('.')),
+                        type = rest.substring(rest.indexOf('.') + 1)
+                    )
+                else -> null
+            }
+            return dep?.takeIf { d -> d.type.isNotEmpty() && d.subPath == path }
+        }
+    }
+}
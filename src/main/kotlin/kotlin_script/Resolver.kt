@@ -1,11 +1,23 @@
 package kotlin_script
 
 import com.github.ajalt.mordant.animation.progress.ProgressTask
+import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
 import java.net.URL
+import java.net.URLConnection
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
 import java.security.MessageDigest
+import java.util.PriorityQueue
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
 import java.util.concurrent.locks.Condition
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.thread
@@ -16,16 +28,27 @@ internal class Resolver(
     private val mavenRepoUrl: String,
     private val mavenRepoCache: Path?,
     private val localRepo: Path,
-    private val p: Progress
+    private val p: Progress,
+    private val maxConcurrency: Int = DEFAULT_MAX_CONCURRENCY,
+    private val mirrorMode: String = "copy"
 ) {
     private val totalProgress = 10_000L
-    private val concurrency = 4
+    private val stamps = StatCache.forRepo(localRepo)
+    private val concurrency = minOf(4, maxConcurrency)
+
+    private fun openConnection(url: URL): URLConnection =
+        url.openConnection().apply {
+            connectTimeout = CONNECT_TIMEOUT_MS
+            readTimeout = READ_TIMEOUT_MS
+            useCaches = false
+        }
 
     fun resolveLibs(
         compilerClassPath: List<Dependency>,
         dependencies: List<Dependency>,
         compilerDependencies: MutableMap<Dependency, Path>,
-        resolvedDependencies: MutableMap<Dependency, Path>
+        resolvedDependencies: MutableMap<Dependency, Path>,
+        showProgress: Boolean = true
     ) {
         val lock = ReentrantLock()
         val cond = lock.newCondition()
@@ -43,49 +66,45 @@ internal class Resolver(
         if (tasks.isEmpty()) {
             return
         }
-        p.withProgress("fetching dependencies", total = totalProgress) { pt ->
-            val executor = FetchExecutor(
-                tasks = tasks,
-                lock = lock,
-                cond = cond,
-                totalProgress = totalProgress,
-                pt = pt
-            )
-            val threads = Array(concurrency) { i ->
-                thread(name = "Fetch$i") {
-                    while (true) {
-                        val myTask = lock.withLock {
-                            var nextTask: FetchTask? = null
-                            if (!executor.haveFailed) {
-                                for (task in tasks) {
-                                    if (task.started) {
-                                        continue
-                                    }
-                                    nextTask = task
-                                    if (task.dep.size == null) {
-                                        break
-                                    }
-                                }
-                                nextTask?.let { it.started = true }
-                            }
-                            nextTask
-                        } ?: break
-                        myTask.run()
-                    }
-                }
+        if (showProgress) {
+            p.withProgress("fetching dependencies", total = totalProgress) { pt ->
+                fetchAll(tasks, lock, cond, pt)
             }
-            try {
-                executor.run()
-            } finally {
-                for (thread in threads) {
-                    thread.join()
-                }
-                val ex = tasks.firstNotNullOfOrNull { task ->
-                    task.failed
-                }
-                if (ex != null) {
-                    throw ex
-                }
+        } else {
+            fetchAll(tasks, lock, cond, null)
+        }
+    }
+
+    private fun fetchAll(
+        tasks: List<FetchTask>,
+        lock: ReentrantLock,
+        cond: Condition,
+        pt: ProgressTask<Unit>?
+    ) {
+        val scheduler = FetchScheduler(
+            tasks = tasks,
+            lock = lock,
+            maxConcurrency = maxConcurrency,
+            p = p
+        )
+        val executor = FetchExecutor(
+            tasks = tasks,
+            lock = lock,
+            cond = cond,
+            totalProgress = totalProgress,
+            pt = pt,
+            scheduler = scheduler
+        )
+        scheduler.start(concurrency) { executor.haveFailed }
+        try {
+            executor.run()
+        } finally {
+            scheduler.join()
+            val ex = tasks.firstNotNullOfOrNull { task ->
+                task.failed
+            }
+            if (ex != null) {
+                throw ex
             }
         }
     }
@@ -102,18 +121,150 @@ internal class Resolver(
                 f.parent.createDirectories()
             }
             put(dep, f)
-            if (f.exists() && (dep.size == null || dep.size == f.fileSize())) {
+            if (isVerified(dep, f)) {
                 resolved[dep] = f
-            } else if (copyFromRepoCache(dep, f)) {
-                p.trace(
-                    "cp ${mavenRepoCache}/$subPath $f"
-                )
-            } else {
+            } else if (!copyFromRepoCache(dep, f)) {
                 toFetch += dep
             }
         }
     }
 
+    /**
+     * Whether [f] is the artifact of [dep]. A stamp recorded when the file
+     * was verified confirms it with a single stat, unstamped files are
+     * hashed once (only their size is checked without a known checksum).
+     */
+    private fun isVerified(dep: Dependency, f: Path): Boolean {
+        if (!f.exists()) {
+            return false
+        }
+        val sha256 = dep.sha256
+            ?: return dep.size == null || dep.size == f.fileSize()
+        val stat = StatCache.stat(f)
+        if (dep.size != null && dep.size != stat.size) {
+            return false
+        }
+        if (stamps.lookup(f, stat) == sha256) {
+            return true
+        }
+        if (mappedSha256(f) != sha256) {
+            p.trace("checksum mismatch: $f")
+            return false
+        }
+        stamps.update(f, stat, sha256)
+        return true
+    }
+
+    /**
+     * The sha256 of a resolved artifact, hashed once for artifacts without
+     * a pinned checksum.
+     */
+    fun sha256(dep: Dependency, f: Path): String {
+        dep.sha256?.let { sha256 -> return sha256 }
+        val stat = StatCache.stat(f)
+        return stamps.lookup(f, stat)
+            ?: mappedSha256(f).also { sha256 -> stamps.update(f, stat, sha256) }
+    }
+
+    /**
+     * The entry names and the size of the upstream artifact of [dep], read
+     * from its central directory with range requests instead of fetching
+     * it, or `null` when the repository does not answer range requests or
+     * the artifact is not a (non-zip64) zip file.
+     */
+    fun remoteEntries(dep: Dependency): Pair<Long, List<String>>? {
+        val url = URL("$mavenRepoUrl/${dep.subPath}")
+        p.trace("fetch central directory $url")
+        val (size, tail) = fetchRange(url, "-$ZIP_TAIL_SIZE") ?: return null
+        val tailStart = size - tail.size
+        val b = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN)
+        val end = (tail.size - ZIP_END_SIZE downTo 0).firstOrNull { i ->
+            b.getInt(i) == ZIP_END_SIG
+        } ?: return null
+        val count = b.getShort(end + 10).toInt() and 0xFFFF
+        val cenSize = b.getInt(end + 12).toLong() and 0xFFFFFFFFL
+        val cenOffset = b.getInt(end + 16).toLong() and 0xFFFFFFFFL
+        if (count == 0xFFFF || cenOffset == 0xFFFFFFFFL || cenOffset + cenSize > size) {
+            return null
+        }
+        val cen = if (cenOffset >= tailStart) {
+            ByteBuffer.wrap(tail, (cenOffset - tailStart).toInt(), cenSize.toInt())
+        } else {
+            val range = fetchRange(url, "$cenOffset-${cenOffset + cenSize - 1}")
+                ?.takeIf { (total, data) -> total == size && data.size.toLong() == cenSize }
+                ?: return null
+            ByteBuffer.wrap(range.second)
+        }.slice().order(ByteOrder.LITTLE_ENDIAN)
+        val names = ArrayList<String>(count)
+        var pos = 0
+        repeat(count) {
+            if (pos + 46 > cen.limit() || cen.getInt(pos) != ZIP_CEN_SIG) {
+                return null
+            }
+            val nameLength = cen.getShort(pos + 28).toInt() and 0xFFFF
+            val extraLength = cen.getShort(pos + 30).toInt() and 0xFFFF
+            val commentLength = cen.getShort(pos + 32).toInt() and 0xFFFF
+            if (pos + 46 + nameLength > cen.limit()) {
+                return null
+            }
+            val name = ByteArray(nameLength) { i -> cen.get(pos + 46 + i) }
+            names += String(name, Charsets.UTF_8)
+            pos += 46 + nameLength + extraLength + commentLength
+        }
+        return size to names
+    }
+
+    /**
+     * The checksum published next to the upstream artifact of [dep], or
+     * `null` if there is none.
+     */
+    fun upstreamSha256(dep: Dependency): String? {
+        val cn = openConnection(URL("$mavenRepoUrl/${dep.subPath}.sha256"))
+        return try {
+            cn.inputStream.use { `in` -> `in`.readBytes() }
+                .toString(Charsets.UTF_8)
+                .trim()
+                .split(Regex("\\s+"), limit = 2)
+                .first()
+                .lowercase()
+                .takeIf { sha256 -> sha256.matches(Regex("[0-9a-f]{64}")) }
+        } catch (_: IOException) {
+            null
+        }
+    }
+
+    /**
+     * Fetches the byte range [spec] of [url], returns the total size and
+     * the data, or `null` if the server ignores the range.
+     */
+    private fun fetchRange(url: URL, spec: String): Pair<Long, ByteArray>? {
+        val cn = openConnection(url) as? HttpURLConnection ?: return null
+        cn.setRequestProperty("Range", "bytes=$spec")
+        return try {
+            if (cn.responseCode != 206) {
+                cn.disconnect()
+                return null
+            }
+            // bytes <start>-<end>/<size>
+            val size = cn.getHeaderField("Content-Range")
+                ?.substringAfter('/', "")
+                ?.toLongOrNull()
+            val data = cn.inputStream.use { `in` -> `in`.readBytes() }
+            size?.let { n -> n to data }
+        } catch (_: IOException) {
+            null
+        }
+    }
+
+    private fun stamp(dep: Dependency, f: Path) {
+        val sha256 = dep.sha256 ?: return
+        try {
+            stamps.update(f, StatCache.stat(f), sha256)
+        } catch (_: IOException) {
+            // verified again on next use
+        }
+    }
+
     private fun copyFromRepoCache(dep: Dependency, dst: Path): Boolean {
         if (mavenRepoCache == null) {
             return false
@@ -127,31 +278,16 @@ internal class Resolver(
             return false
         }
         try {
-            val md = if (dep.sha256 != null) {
-                MessageDigest.getInstance("SHA-256")
-            } else {
-                null
+            if (dep.sha256 != null && dep.sha256 != mappedSha256(source)) {
+                return false
             }
             val tmp = createTempFile(dst.parent, "${dst.name}~", "")
             try {
-                tmp.outputStream().use { out ->
-                    source.inputStream().use { `in` ->
-                        val buffer = ByteArray(1024 * 4)
-                        while (true) {
-                            val n = `in`.read(buffer)
-                            if (n < 0) break
-                            md?.update(buffer, 0, n)
-                            out.write(buffer, 0, n)
-                        }
-                    }
-                }
-                if (md != null) {
-                    val sha256 = md.digest().joinToString("") {
-                        "%02x".format(it)
-                    }
-                    if (dep.sha256 != sha256) {
-                        return false
-                    }
+                if (mirrorMode == "link" && link(source, tmp)) {
+                    p.trace("ln $source $dst")
+                } else {
+                    p.trace("cp $source $dst")
+                    transfer(source, tmp)
                 }
                 tmp.moveTo(
                     dst,
@@ -161,22 +297,165 @@ internal class Resolver(
             } finally {
                 tmp.deleteIfExists()
             }
+            stamp(dep, dst)
         } catch (_: Throwable) {
             return false
         }
         return true
     }
 
+    private fun mappedSha256(f: Path): String {
+        val md = MessageDigest.getInstance("SHA-256")
+        FileChannel.open(f, StandardOpenOption.READ).use { ch ->
+            val size = ch.size()
+            var position = 0L
+            while (position < size) {
+                val length = minOf(size - position, MAX_MAP_SIZE)
+                md.update(ch.map(FileChannel.MapMode.READ_ONLY, position, length))
+                position += length
+            }
+        }
+        return md.digest().toHex()
+    }
+
+    private fun link(source: Path, tmp: Path): Boolean {
+        tmp.deleteIfExists()
+        return try {
+            Files.createLink(tmp, source)
+            true
+        } catch (_: IOException) {
+            // e.g. on a different file system
+            false
+        } catch (_: UnsupportedOperationException) {
+            false
+        }
+    }
+
+    private fun transfer(source: Path, tmp: Path) {
+        FileChannel.open(source, StandardOpenOption.READ).use { `in` ->
+            FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            ).use { out ->
+                val size = `in`.size()
+                var position = 0L
+                while (position < size) {
+                    val n = `in`.transferTo(position, size - position, out)
+                    if (n <= 0) {
+                        throw IOException("$source: unexpected end of file")
+                    }
+                    position += n
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands out the fetch tasks largest first, so the biggest downloads do
+     * not start last, and adds fetch threads as long as that still increases
+     * the overall throughput (or the fetches are dominated by latency), up to
+     * [maxConcurrency] threads.
+     */
+    private class FetchScheduler(
+        tasks: List<FetchTask>,
+        private val lock: ReentrantLock,
+        private val maxConcurrency: Int,
+        private val p: Progress
+    ) {
+        private val queue = PriorityQueue<FetchTask>(
+            maxOf(1, tasks.size),
+            compareByDescending { task -> task.dep.size ?: GUESSED_SIZE }
+        ).apply { addAll(tasks) }
+        private val threads = mutableListOf<Thread>()
+        private var haveFailed: () -> Boolean = { false }
+        private var lastAdjust = System.nanoTime()
+        private var lastTransferred = 0L
+        private var throughputAtLastIncrease = 0.0
+
+        fun start(concurrency: Int, haveFailed: () -> Boolean) {
+            this.haveFailed = haveFailed
+            repeat(minOf(concurrency, queue.size)) {
+                addThread()
+            }
+        }
+
+        private fun addThread() {
+            threads += thread(name = "Fetch${threads.size}") {
+                while (true) {
+                    val myTask = lock.withLock {
+                        if (haveFailed()) {
+                            null
+                        } else {
+                            queue.poll()?.also { task -> task.started = true }
+                        }
+                    } ?: break
+                    myTask.run()
+                }
+            }
+        }
+
+        /**
+         * Called periodically by the executor thread.
+         */
+        fun adjust(tasks: List<FetchTask>) {
+            val now = System.nanoTime()
+            val elapsed = now - lastAdjust
+            if (elapsed < ADJUST_INTERVAL_NS) {
+                return
+            }
+            val transferred = tasks.sumOf { task -> task.transferred }
+            val throughput = (transferred - lastTransferred).toDouble() *
+                    1e9 / elapsed.toDouble()
+            lastAdjust = now
+            lastTransferred = transferred
+            if (threads.size >= maxConcurrency || lock.withLock { queue.isEmpty() }) {
+                return
+            }
+            if (throughput > throughputAtLastIncrease * 1.1 || latencyBound(tasks)) {
+                throughputAtLastIncrease = throughput
+                p.trace(
+                    "fetch threads: ${threads.size + 1},",
+                    "throughput: ${throughput.toLong()} B/s"
+                )
+                addThread()
+            }
+        }
+
+        /**
+         * Whether the completed fetches spent most of their time waiting
+         * for the response, i.e. more connections are cheap.
+         */
+        private fun latencyBound(tasks: List<FetchTask>): Boolean {
+            var latency = 0L
+            var duration = 0L
+            for (task in tasks) {
+                if (task.latencyNs >= 0 && task.durationNs > 0) {
+                    latency += task.latencyNs
+                    duration += task.durationNs
+                }
+            }
+            return duration > 0 && latency * 2 > duration
+        }
+
+        fun join() {
+            for (thread in threads) {
+                thread.join()
+            }
+        }
+    }
+
     private class FetchExecutor(
         val tasks: List<FetchTask>,
         val lock: ReentrantLock,
         val cond: Condition,
         val totalProgress: Long,
         val pt: ProgressTask<Unit>?,
+        val scheduler: FetchScheduler,
         var haveFailed: Boolean = false
     ) {
         private val waitForSizesMs = 800L
-        private val guessedSize = 2L * 1024L * 1024L
 
         fun run() {
             val started = System.currentTimeMillis()
@@ -215,13 +494,13 @@ internal class Resolver(
                                     if (task.transferred > 0) {
                                         task.transferred
                                     } else {
-                                        guessedSize
+                                        GUESSED_SIZE
                                     }
                                 }
 
                                 task.transferred > 0 -> {
                                     // in progress without detected size
-                                    guessedSize
+                                    GUESSED_SIZE
                                 }
 
                                 else -> {
@@ -236,7 +515,7 @@ internal class Resolver(
                             totalEstimatedSize += size
                             size
                         } else {
-                            totalEstimatedSize += guessedSize
+                            totalEstimatedSize += GUESSED_SIZE
                             -1L
                         }
                     }
@@ -269,6 +548,9 @@ internal class Resolver(
                     pt?.update { completed = totalProgress }
                     break
                 }
+                if (!haveFailed) {
+                    scheduler.adjust(tasks)
+                }
                 pt?.update {
                     completed = minOf(totalProgress - 1, completedProgress)
                 }
@@ -284,7 +566,12 @@ internal class Resolver(
     ) {
         var detectedSize: Long? = null
         var allocatedProgress: Long? = null
+        @Volatile
         var transferred: Long = 0
+        @Volatile
+        var latencyNs: Long = -1L
+        @Volatile
+        var durationNs: Long = 0L
         var started: Boolean = false
         var completed: Boolean = false
         var failed: Throwable? = null
@@ -308,14 +595,34 @@ internal class Resolver(
         fun run() {
             val subPath = dep.subPath
             val f = resolver.localRepo / subPath
-            val tmp = createTempFile(f.parent, "${f.name}~", "")
+            // one process fetches into the part file, concurrent processes
+            // wait for the artifact lock and reuse the result; with a known
+            // checksum the part file is kept to resume a failed download
+            val part = if (dep.sha256 != null) {
+                f.resolveSibling("${f.name}.${dep.sha256}.part")
+            } else {
+                f.resolveSibling("${f.name}.part")
+            }
             try {
-                fetchFromRepo(dep, tmp)
-                tmp.moveTo(
-                    f,
-                    StandardCopyOption.ATOMIC_MOVE,
-                    StandardCopyOption.REPLACE_EXISTING
-                )
+                awaitArtifactLock(f.resolveSibling("${f.name}.lock"), part).use {
+                    if (resolver.isVerified(dep, f)) {
+                        resolver.p.trace("fetched by concurrent process: $f")
+                    } else {
+                        try {
+                            fetchFromRepo(dep, part)
+                            part.moveTo(
+                                f,
+                                StandardCopyOption.ATOMIC_MOVE,
+                                StandardCopyOption.REPLACE_EXISTING
+                            )
+                            resolver.stamp(dep, f)
+                        } finally {
+                            if (dep.sha256 == null) {
+                                part.deleteIfExists()
+                            }
+                        }
+                    }
+                }
             } catch (ex: Throwable) {
                 failed = ex
             } finally {
@@ -323,67 +630,329 @@ internal class Resolver(
                     completed = true
                     cond.signal()
                 }
-                tmp.deleteIfExists()
+            }
+        }
+
+        private fun awaitArtifactLock(lockPath: Path, part: Path): FileLockHandle {
+            tryLockFile(lockPath)?.let { return it }
+            resolver.p.trace("wait", lockPath.toString())
+            while (true) {
+                // report the progress of the other process
+                val size = try {
+                    part.fileSize()
+                } catch (_: IOException) {
+                    0L
+                }
+                lock.withLock {
+                    if (detectedSize == null && dep.size != null) {
+                        detectedSize = dep.size
+                    }
+                    transferred = size
+                    cond.signal()
+                }
+                Thread.sleep(100L)
+                tryLockFile(lockPath)?.let { handle ->
+                    lock.withLock {
+                        transferred = 0L
+                    }
+                    return handle
+                }
             }
         }
 
         private fun fetchFromRepo(dep: Dependency, tmp: Path) {
-            val url = "${resolver.mavenRepoUrl}/${dep.subPath}"
+            val url = URL("${resolver.mavenRepoUrl}/${dep.subPath}")
             resolver.p.trace("fetch $url")
             val md = if (dep.sha256 != null) {
                 MessageDigest.getInstance("SHA-256")
             } else {
                 null
             }
-            tmp.outputStream().use { out ->
-                val cn = URL(url).openConnection()
-                val contentLength = cn.contentLengthLong
-                if (contentLength >= 0) {
-                    if (dep.size != null && dep.size != contentLength) {
-                        error(
-                            "error fetching $dep: unexpected Content-Length: " +
-                                    "$contentLength, expected ${dep.size}"
-                        )
-                    }
-                    lock.withLock {
-                        detectedSize = contentLength
-                        cond.signal()
+            val startNs = System.nanoTime()
+            val segments = List(SEGMENTS) { i -> tmp.resolveSibling("${tmp.name}.$i") }
+            val size = dep.size
+            val segmented = md != null && size != null &&
+                    size >= SEGMENTED_FETCH_MIN_SIZE &&
+                    (segments.any { f -> f.exists() } || !tmp.exists())
+            val received = if (segmented &&
+                fetchSegments(url, size!!, tmp, segments, md!!, startNs)) {
+                size
+            } else {
+                fetchStream(url, tmp, md, startNs)
+            }
+            durationNs = System.nanoTime() - startNs
+            if (dep.size != null && dep.size != received) {
+                error(
+                    "error fetching $dep: received $received Byte(s), " +
+                            "expected ${dep.size} Byte(s)"
+                )
+            }
+            if (md != null) {
+                val sha256 = md.digest().toHex()
+                if (dep.sha256 != sha256) {
+                    // do not resume from a corrupt partial download
+                    tmp.deleteIfExists()
+                    error("unexpected sha256=$sha256 for $dep")
+                }
+            }
+        }
+
+        /**
+         * Fetches the artifact with a single request, resuming a partial
+         * download with a range request when its checksum is known.
+         */
+        private fun fetchStream(
+            url: URL,
+            tmp: Path,
+            md: MessageDigest?,
+            startNs: Long
+        ): Long {
+            var offset = if (md != null && tmp.exists()) tmp.fileSize() else 0L
+            if (dep.size != null && offset >= dep.size) {
+                offset = 0L
+            }
+            val cn = resolver.openConnection(url)
+            if (offset > 0) {
+                cn.setRequestProperty("Range", "bytes=$offset-")
+            }
+            val contentLength = cn.contentLengthLong
+            latencyNs = System.nanoTime() - startNs
+            if (offset > 0) {
+                if (isPartialContent(cn, offset)) {
+                    resolver.p.trace("resume $url at $offset")
+                } else {
+                    if ((cn as? HttpURLConnection)?.responseCode == 416) {
+                        tmp.deleteIfExists()
+                        error("error fetching $dep: range not satisfiable")
                     }
+                    offset = 0L
                 }
+            }
+            val totalLength = if (contentLength >= 0) offset + contentLength else -1L
+            if (totalLength >= 0) {
+                if (dep.size != null && dep.size != totalLength) {
+                    error(
+                        "error fetching $dep: unexpected Content-Length: " +
+                                "$totalLength, expected ${dep.size}"
+                    )
+                }
+                lock.withLock {
+                    detectedSize = totalLength
+                    cond.signal()
+                }
+            }
+            if (offset > 0 && md != null) {
+                digestFile(tmp, offset, md)
+            }
+            transferred = offset
+            FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE
+            ).use { out ->
+                out.truncate(offset)
+                out.position(offset)
+                // reading the body to the end and closing the stream returns
+                // the connection to the keep-alive cache
                 cn.inputStream.use { `in` ->
-                    val buffer = ByteArray(1024 * 4)
-                    while (true) {
-                        val n = `in`.read(buffer)
-                        if (n < 0) break
-                        md?.update(buffer, 0, n)
-                        out.write(buffer, 0, n)
-                        lock.withLock {
-                            transferred += n
-                            cond.signal()
+                    copy(`in`, out, md) { n ->
+                        // only written by this thread, polled by the executor
+                        transferred += n
+                    }
+                }
+            }
+            if (totalLength >= 0 && totalLength != transferred) {
+                error(
+                    "error fetching $dep: received $transferred Byte(s), " +
+                            "expected $totalLength Byte(s)"
+                )
+            }
+            return transferred
+        }
+
+        /**
+         * Fetches the artifact in concurrent byte ranges, each into its own
+         * (resumable) segment file, and reassembles them into [tmp].
+         *
+         * @return `false` when the server does not support range requests
+         */
+        private fun fetchSegments(
+            url: URL,
+            size: Long,
+            tmp: Path,
+            segments: List<Path>,
+            md: MessageDigest,
+            startNs: Long
+        ): Boolean {
+            val segmentSize = (size + segments.size - 1) / segments.size
+            val starts = LongArray(segments.size) { i -> minOf(size, i * segmentSize) }
+            val ends = LongArray(segments.size) { i -> minOf(size, (i + 1) * segmentSize) }
+            val offsets = LongArray(segments.size) { i ->
+                val existing = if (segments[i].exists()) segments[i].fileSize() else 0L
+                if (existing > ends[i] - starts[i]) 0L else existing
+            }
+            val counter = AtomicLong(offsets.sum())
+            transferred = counter.get()
+            lock.withLock {
+                detectedSize = size
+                cond.signal()
+            }
+            val pending = segments.indices.filter { i -> starts[i] + offsets[i] < ends[i] }
+            if (pending.isNotEmpty()) {
+                // the first request tells whether ranges are supported
+                val first = pending.first()
+                val cn = openSegment(url, starts[first] + offsets[first], ends[first])
+                latencyNs = System.nanoTime() - startNs
+                if (cn == null) {
+                    resolver.p.trace("no range support: $url")
+                    segments.forEach { f -> f.deleteIfExists() }
+                    return false
+                }
+                resolver.p.trace("fetch $url in ${pending.size} range(s)")
+                val failed = AtomicReference<Throwable>()
+                val threads = pending.drop(1).map { i ->
+                    thread(name = "${Thread.currentThread().name}-$i") {
+                        try {
+                            val segmentCn = openSegment(
+                                url, starts[i] + offsets[i], ends[i]
+                            ) ?: throw IOException("range request ignored: $url")
+                            fetchSegment(
+                                segmentCn, segments[i], offsets[i],
+                                ends[i] - starts[i], counter
+                            )
+                        } catch (ex: Throwable) {
+                            failed.compareAndSet(null, ex)
                         }
                     }
                 }
-                if (dep.size != null && dep.size != transferred) {
-                    error(
-                        "error fetching $dep: received $transferred Byte(s), " +
-                                "expected ${dep.size} Byte(s)"
+                try {
+                    fetchSegment(
+                        cn, segments[first], offsets[first],
+                        ends[first] - starts[first], counter
                     )
+                } finally {
+                    threads.forEach { t -> t.join() }
                 }
-                if (contentLength >= 0 && contentLength != transferred) {
-                    error(
-                        "error fetching $dep: received $transferred Byte(s), " +
-                                "expected $contentLength Byte(s)"
-                    )
+                failed.get()?.let { ex -> throw ex }
+            }
+            // reassemble and hash in order
+            FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            ).use { out ->
+                for (f in segments) {
+                    f.inputStream().use { `in` ->
+                        copy(`in`, out, md) { }
+                    }
+                }
+            }
+            segments.forEach { f -> f.deleteIfExists() }
+            return true
+        }
+
+        private fun openSegment(url: URL, start: Long, end: Long): URLConnection? {
+            val cn = resolver.openConnection(url)
+            cn.setRequestProperty("Range", "bytes=$start-${end - 1}")
+            if (!isPartialContent(cn, start)) {
+                try {
+                    cn.inputStream.close()
+                } catch (_: IOException) {
                 }
-                if (md != null) {
-                    val sha256 = md.digest().joinToString("") {
-                        "%02x".format(it)
+                return null
+            }
+            return cn
+        }
+
+        private fun fetchSegment(
+            cn: URLConnection,
+            f: Path,
+            offset: Long,
+            length: Long,
+            counter: AtomicLong
+        ) {
+            FileChannel.open(
+                f,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE
+            ).use { out ->
+                out.truncate(offset)
+                out.position(offset)
+                cn.inputStream.use { `in` ->
+                    copy(`in`, out, null) { n ->
+                        transferred = counter.addAndGet(n.toLong())
                     }
-                    if (dep.sha256 != sha256) {
-                        error("unexpected sha256=$sha256 for $dep")
+                }
+                if (out.size() != length) {
+                    throw IOException(
+                        "error fetching $dep: received ${out.size()} " +
+                                "of $length Byte(s) of $f"
+                    )
+                }
+            }
+        }
+
+        private fun isPartialContent(cn: URLConnection, start: Long): Boolean {
+            if ((cn as? HttpURLConnection)?.responseCode != 206) {
+                return false
+            }
+            val contentRange = cn.getHeaderField("Content-Range") ?: return false
+            return contentRange.trim().startsWith("bytes $start-")
+        }
+
+        private fun digestFile(f: Path, length: Long, md: MessageDigest) {
+            f.inputStream().use { `in` ->
+                val buffer = ByteArray(FETCH_BUFFER_SIZE)
+                var remaining = length
+                while (remaining > 0) {
+                    val len = minOf(remaining, buffer.size.toLong()).toInt()
+                    val n = `in`.read(buffer, 0, len)
+                    if (n < 0) {
+                        throw IOException("$f: unexpected end of file")
                     }
+                    md.update(buffer, 0, n)
+                    remaining -= n
                 }
             }
         }
+
+        private fun copy(
+            `in`: InputStream,
+            out: FileChannel,
+            md: MessageDigest?,
+            transferred: (Int) -> Unit
+        ) {
+            val buffer = ByteArray(FETCH_BUFFER_SIZE)
+            val bb = ByteBuffer.wrap(buffer)
+            while (true) {
+                val n = `in`.read(buffer)
+                if (n < 0) break
+                md?.update(buffer, 0, n)
+                bb.clear()
+                bb.limit(n)
+                while (bb.hasRemaining()) {
+                    out.write(bb)
+                }
+                transferred(n)
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_CONCURRENCY = 8
+        private const val GUESSED_SIZE = 2L * 1024L * 1024L
+        private const val ADJUST_INTERVAL_NS = 2_000_000_000L
+        private const val FETCH_BUFFER_SIZE = 64 * 1024
+        private const val MAX_MAP_SIZE = 1L shl 30
+        private const val SEGMENTS = 4
+        private const val SEGMENTED_FETCH_MIN_SIZE = 16L * 1024L * 1024L
+        private const val ZIP_END_SIG = 0x06054b50
+        private const val ZIP_CEN_SIG = 0x02014b50
+        private const val ZIP_END_SIZE = 22
+        // end of central directory with the longest possible comment
+        private const val ZIP_TAIL_SIZE = ZIP_END_SIZE + 0xFFFF
+        private const val CONNECT_TIMEOUT_MS = 30_000
+        private const val READ_TIMEOUT_MS = 60_000
     }
 }
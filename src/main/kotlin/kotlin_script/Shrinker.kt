@@ -0,0 +1,224 @@
+package kotlin_script
+
+import java.nio.file.Path
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+import kotlin.io.path.outputStream
+
+/**
+ * Copies the classes of [classPath] reachable from the script jar into a
+ * single runtime jar.
+ *
+ * A class is reachable if it is referenced by the constant pool, a
+ * member descriptor, a generic signature or an annotation of a reachable
+ * class, named by one of its string constants (e.g.
+ * `Class.forName("a.b.C")`), matched by a [keep] rule or listed in a
+ * `META-INF/services` file of a reachable service. Rules are
+ * class names, `a.b.*` for a package or `a.b.**` for a package and its
+ * subpackages. Other resources are copied from each jar with a reachable
+ * class, except signatures and multi-release versions.
+ */
+internal class Shrinker(
+    private val scriptJar: Path,
+    private val classPath: List<Path>,
+    private val keep: List<String>,
+) {
+    private class Entry(val jar: ZipFile, val entry: ZipEntry)
+
+    private val scriptClasses = mutableSetOf<String>()
+    private val classes = mutableMapOf<String, Entry>()
+    private val jarClasses = mutableMapOf<ZipFile, MutableList<String>>()
+
+    fun shrink(output: Path, stored: Boolean) {
+        val jars = classPath.map { f -> ZipFile(f.toFile()) }
+        try {
+            ZipFile(scriptJar.toFile()).use { zf ->
+                zf.entries().asSequence()
+                    .filter { e -> e.name.endsWith(".class") }
+                    .forEach { e -> scriptClasses += e.name.removeSuffix(".class") }
+            }
+            for (jar in jars) {
+                for (e in jar.entries()) {
+                    if (!e.name.endsWith(".class") || isExcluded(e.name)) {
+                        continue
+                    }
+                    val name = e.name.removeSuffix(".class")
+                    if (name in classes || name in scriptClasses) {
+                        continue
+                    }
+                    classes[name] = Entry(jar, e)
+                    jarClasses.getOrPut(jar) { mutableListOf() } += name
+                }
+            }
+            val reachable = reachable(jars)
+            write(output, jars, reachable, stored)
+        } finally {
+            jars.forEach { jar -> jar.close() }
+        }
+    }
+
+    private fun reachable(jars: List<ZipFile>): Set<String> {
+        val reachable = mutableSetOf<String>()
+        val queue = ArrayDeque<String>()
+        fun visit(name: String) {
+            if (name in classes && reachable.add(name)) {
+                queue += name
+            }
+        }
+        fun visitReferences(cf: ClassFile) {
+            cf.superName?.let { name -> visit(name) }
+            cf.interfaces.forEach { name -> visit(name) }
+            cf.referencedClasses.forEach { name -> visit(name) }
+            cf.stringConstants.forEach { s -> visit(s.replace('.', '/')) }
+        }
+
+        ZipFile(scriptJar.toFile()).use { zf ->
+            for (e in zf.entries()) {
+                if (e.name.endsWith(".class") && !isExcluded(e.name)) {
+                    visitReferences(zf.getInputStream(e).use { `in` -> ClassFile.parse(`in`.readBytes()) })
+                }
+            }
+        }
+        // read by kotlin reflection, but only referenced as annotation
+        visit("kotlin/Metadata")
+        classes.keys.filter { name -> isKept(name) }.forEach { name -> visit(name) }
+
+        val visitedServices = mutableSetOf<String>()
+        while (true) {
+            while (queue.isNotEmpty()) {
+                val name = queue.removeFirst()
+                val e = classes.getValue(name)
+                val cf = try {
+                    e.jar.getInputStream(e.entry).use { `in` -> ClassFile.parse(`in`.readBytes()) }
+                } catch (_: Exception) {
+                    // unknown class file format: keep the whole jar
+                    jarClasses.getValue(e.jar).forEach { other -> visit(other) }
+                    continue
+                }
+                visitReferences(cf)
+            }
+            val services = services(jars).filterKeys { service ->
+                service !in visitedServices &&
+                        (service in reachable || service in scriptClasses || service !in classes)
+            }
+            if (services.isEmpty()) {
+                break
+            }
+            services.forEach { (service, implementations) ->
+                visitedServices += service
+                implementations.forEach { name -> visit(name) }
+            }
+        }
+        return reachable
+    }
+
+    /**
+     * Maps service names (internal form) to their implementations.
+     */
+    private fun services(jars: List<ZipFile>): Map<String, List<String>> {
+        val result = mutableMapOf<String, MutableList<String>>()
+        for (jar in jars) {
+            for (e in jar.entries()) {
+                if (!e.name.startsWith(SERVICES) || e.isDirectory) {
+                    continue
+                }
+                val service = e.name.removePrefix(SERVICES).replace('.', '/')
+                result.getOrPut(service) { mutableListOf() } += serviceImplementations(jar, e)
+            }
+        }
+        return result
+    }
+
+    private fun serviceImplementations(jar: ZipFile, e: ZipEntry): List<String> =
+        jar.getInputStream(e).bufferedReader().use { r -> r.readLines() }
+            .map { line -> line.substringBefore('#').trim() }
+            .filter { line -> line.isNotEmpty() }
+            .map { line -> line.replace('.', '/') }
+
+    private fun isKept(name: String): Boolean {
+        val className = name.replace('/', '.')
+        return keep.any { rule ->
+            when {
+                rule.endsWith(".**") -> className.startsWith(rule.removeSuffix("**"))
+                rule.endsWith(".*") -> className.startsWith(rule.removeSuffix("*")) &&
+                        '.' !in className.substring(rule.length - 1)
+                else -> className == rule || className.startsWith("$rule$")
+            }
+        }
+    }
+
+    private fun write(output: Path, jars: List<ZipFile>, reachable: Set<String>, stored: Boolean) {
+        // resource only jars are kept as they are
+        val used = reachable.map { name -> classes.getValue(name).jar }.toSet() +
+                jars.filter { jar -> jar !in jarClasses }
+        val written = mutableSetOf<String>()
+        output.outputStream().use { out ->
+            ZipOutputStream(out).use { zout ->
+                fun put(name: String, data: ByteArray) {
+                    if (!written.add(name)) {
+                        return
+                    }
+                    val entry = ZipEntry(name)
+                    if (stored) {
+                        entry.method = ZipEntry.STORED
+                        entry.size = data.size.toLong()
+                        entry.compressedSize = data.size.toLong()
+                        entry.crc = CRC32().also { crc -> crc.update(data) }.value
+                    }
+                    zout.putNextEntry(entry)
+                    zout.write(data)
+                    zout.closeEntry()
+                }
+                // same order as on the class path, first one wins
+                for (jar in jars) {
+                    if (jar !in used) {
+                        continue
+                    }
+                    for (e in jar.entries()) {
+                        val name = e.name
+                        val keepEntry = when {
+                            e.isDirectory || isExcluded(name) -> false
+                            name.endsWith(".class") -> name.removeSuffix(".class") in reachable &&
+                                    classes[name.removeSuffix(".class")]?.jar == jar
+                            else -> !name.startsWith(SERVICES)
+                        }
+                        if (keepEntry) {
+                            put(name, jar.getInputStream(e).use { `in` -> `in`.readBytes() })
+                        }
+                    }
+                }
+                // merged, without implementations that were not kept
+                services(jars.filter { jar -> jar in used }).forEach { (service, implementations) ->
+                    val kept = implementations.filter { name -> name in reachable }
+                    if (kept.isNotEmpty()) {
+                        put(
+                            SERVICES + service.replace('/', '.'),
+                            kept.joinToString("") { name -> name.replace('/', '.') + "\n" }
+                                .toByteArray()
+                        )
+                    }
+                }
+                zout.finish()
+            }
+        }
+    }
+
+    companion object {
+        private const val SERVICES = "META-INF/services/"
+
+        private fun isExcluded(name: String): Boolean {
+            if (name == "module-info.class" || name.startsWith("META-INF/versions/")) {
+                return true
+            }
+            if (name.substringBeforeLast('/', "") != "META-INF") {
+                return false
+            }
+            val fileName = name.substringAfterLast('/')
+            return fileName == "MANIFEST.MF" || fileName == "INDEX.LIST" ||
+                    listOf(".SF", ".RSA", ".DSA", ".EC").any { ext -> fileName.endsWith(ext) } ||
+                    fileName.startsWith("SIG-")
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package kotlin_script
+
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.TimeUnit
+import kotlin.io.path.div
+
+/**
+ * Maps (path, device, inode, size, mtime, ctime) to the verified sha256 of
+ * a file, so a single `stat` confirms that a local artifact is still the
+ * one that was checked.
+ *
+ * Same format as `launcher/kotlin_script/StatCache.java`.
+ */
+internal class StatCache(file: Path) {
+
+    class Stat(
+        val dev: Long,
+        val ino: Long,
+        val size: Long,
+        val mtime: Long,
+        val ctime: Long,
+    )
+
+    private val log = RecordLog(file, MAGIC)
+    private var records: Map<String, ByteBuffer>? = null
+
+    @Synchronized
+    fun lookup(file: Path, stat: Stat): String? {
+        val records = this.records ?: load().also { this.records = it }
+        val record = records[keyOf(file)]?.duplicate() ?: return null
+        record.getString()
+        if (record.long != stat.dev ||
+            record.long != stat.ino ||
+            record.long != stat.size ||
+            record.long != stat.mtime ||
+            record.long != stat.ctime) {
+            return null
+        }
+        val sha256 = ByteArray(32)
+        record.get(sha256)
+        return sha256.toHex()
+    }
+
+    private fun load(): Map<String, ByteBuffer> = try {
+        log.read().associateBy { r -> r.duplicate().getString() }
+    } catch (_: IOException) {
+        emptyMap()
+    }
+
+    /**
+     * Records the verified [sha256] of [file]. Unlike script files, recent
+     * timestamps are not racy here: artifacts are replaced by atomic moves,
+     * never modified in place.
+     */
+    @Synchronized
+    fun update(file: Path, stat: Stat, sha256: String) {
+        try {
+            val bytes = ByteArrayOutputStream()
+            DataOutputStream(bytes).use { out ->
+                out.writeString(keyOf(file))
+                out.writeLong(stat.dev)
+                out.writeLong(stat.ino)
+                out.writeLong(stat.size)
+                out.writeLong(stat.mtime)
+                out.writeLong(stat.ctime)
+                out.write(sha256.hexToBytes())
+            }
+            log.append(bytes.toByteArray()) { r -> r.getString() }
+            records = null
+        } catch (_: IOException) {
+            // cache is optional
+        }
+    }
+
+    companion object {
+        // "KSSC"
+        private const val MAGIC = 0x4b535343
+
+        fun forRepo(localRepo: Path) = StatCache(
+            localRepo / "org/cikit/kotlin_script_cache/verified.stat"
+        )
+
+        fun stat(file: Path): Stat = try {
+            val attrs = Files.readAttributes(
+                file,
+                "unix:dev,ino,size,lastModifiedTime,ctime"
+            )
+            Stat(
+                dev = (attrs["dev"] as Number).toLong(),
+                ino = (attrs["ino"] as Number).toLong(),
+                size = (attrs["size"] as Number).toLong(),
+                mtime = (attrs["lastModifiedTime"] as FileTime).to(TimeUnit.NANOSECONDS),
+                ctime = (attrs["ctime"] as FileTime).to(TimeUnit.NANOSECONDS),
+            )
+        } catch (_: UnsupportedOperationException) {
+            basicStat(file)
+        } catch (_: IllegalArgumentException) {
+            basicStat(file)
+        }
+
+        private fun basicStat(file: Path): Stat {
+            val attrs = Files.readAttributes(file, BasicFileAttributes::class.java)
+            return Stat(
+                dev = 0L,
+                ino = attrs.fileKey()?.hashCode()?.toLong() ?: 0L,
+                size = attrs.size(),
+                mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                ctime = attrs.creationTime().to(TimeUnit.NANOSECONDS),
+            )
+        }
+
+        private fun keyOf(file: Path) =
+            file.toAbsolutePath().normalize().toString()
+    }
+}
@@ -14,6 +14,9 @@ data class MetaData(
     val inc: List<Script>,
     val dep: List<Dependency>,
     val compilerArgs: List<String> = listOf(),
+    val lib: List<Path> = listOf(),
+    val lazy: List<LazyDependency> = listOf(),
+    val keep: List<String> = listOf(),
 ) {
     fun jarCachePath(jvmTarget: String): Path {
         val checksum = if (inc.isEmpty()) {
@@ -46,7 +49,7 @@ data class MetaData(
             md.digest().joinToString("") { x -> String.format("%02x", x) }
         }
 
-    private fun store(out: OutputStream) {
+    internal fun store(out: OutputStream) {
         val w = out.bufferedWriter(Charsets.UTF_8)
         w.write("///KOTLIN_SCRIPT_VERSION=$kotlinScriptVersion\n")
         w.write("///SCRIPT=${mainScript.path.name}\n")
@@ -54,6 +57,9 @@ data class MetaData(
         inc.forEach { s ->
             w.write("///INC=${s.path.pathString}\n")
         }
+        lib.forEach { path ->
+            w.write("///LIB=${path.pathString}\n")
+        }
         w.write("///MAIN=$main\n")
         dep.forEach { d ->
             val k = when (d.scope) {
@@ -63,7 +69,9 @@ data class MetaData(
             }
             w.write("///$k=${d.subPath}\n")
         }
+        lazy.forEach { d -> w.write("///LAZY=${d.toSpec()}\n") }
         compilerArgs.forEach { w.write("///CARG=$it\n") }
+        keep.forEach { rule -> w.write("///KEEP=$rule\n") }
         w.flush()
     }
 
@@ -104,6 +112,10 @@ internal fun parseMetaData(
     val scripts = metaDataMap["INC"]?.map { s ->
         loadScript(Path(s), scriptFileParent)
     }
+    // libraries are includes compiled into a shared jar
+    val libs = metaDataMap["LIB"]?.map { s ->
+        loadScript(Path(s), scriptFileParent)
+    }
     val dep = listOf(
         "DEP" to Scope.Compile,
         "RDEP" to Scope.Runtime,
@@ -126,8 +138,10 @@ internal fun parseMetaData(
                 )
             },
         mainScript = mainScript,
-        inc = scripts ?: emptyList(),
+        inc = (scripts ?: emptyList()) + (libs ?: emptyList()),
         dep = dep,
         compilerArgs = metaDataMap["CARG"] ?: emptyList(),
+        lib = libs?.map { s -> s.path } ?: emptyList(),
+        keep = metaDataMap["KEEP"]?.map { rule -> rule.trim() } ?: emptyList(),
     )
 }
@@ -0,0 +1,96 @@
+import assertk.assertThat
+import assertk.assertions.contains
+import assertk.assertions.containsExactly
+import assertk.assertions.containsExactlyInAnyOrder
+import assertk.assertions.doesNotContain
+import assertk.assertions.isEqualTo
+import assertk.assertions.isNotEqualTo
+import kotlin_script.ClassFile
+import org.junit.jupiter.api.Test
+
+class TestClassFile {
+    private class Sample(val text: String) : Comparable<Sample> {
+        override fun compareTo(other: Sample) = text.compareTo(other.text)
+    }
+
+    private class OtherSample(val text: String) : Comparable<OtherSample> {
+        override fun compareTo(other: OtherSample) = text.compareTo(other.text)
+        fun extra() = text.length
+    }
+
+    private object Limits {
+        const val MAX = 1
+    }
+
+    private object OtherLimits {
+        const val MAX = 2
+    }
+
+    private object SameLimits {
+        const val MAX = 1
+        fun extra() = MAX + 1
+    }
+
+    private fun load(c: Class<*>): ClassFile {
+        val resource = c.name.replace('.', '/') + ".class"
+        val data = c.classLoader.getResourceAsStream(resource)!!.use { `in` ->
+            `in`.readBytes()
+        }
+        return ClassFile.parse(data)
+    }
+
+    @Test
+    fun `parse header and attributes`() {
+        val cf = load(Sample::class.java)
+        assertThat(cf.name).isEqualTo("TestClassFile\$Sample")
+        assertThat(cf.superName).isEqualTo("java/lang/Object")
+        assertThat(cf.interfaces).containsExactly("java/lang/Comparable")
+        assertThat(cf.sourceFile).isEqualTo("TestClassFile.kt")
+        assertThat(cf.referencedClasses).contains("java/lang/String")
+        assertThat(cf.referencedClasses).doesNotContain("TestClassFile\$Sample")
+    }
+
+    @Test
+    fun `abi hash covers members`() {
+        assertThat(load(Sample::class.java).abiHash)
+            .isEqualTo(load(Sample::class.java).abiHash)
+        assertThat(load(Sample::class.java).abiHash)
+            .isNotEqualTo(load(OtherSample::class.java).abiHash)
+    }
+
+    @Test
+    fun `constants hash covers constant values`() {
+        assertThat(load(Limits::class.java).constantsHash)
+            .isNotEqualTo(load(OtherLimits::class.java).constantsHash)
+        assertThat(load(Limits::class.java).constantsHash)
+            .isEqualTo(load(SameLimits::class.java).constantsHash)
+        assertThat(load(Limits::class.java).abiHash)
+            .isNotEqualTo(load(SameLimits::class.java).abiHash)
+    }
+
+    @Test
+    fun `descriptor classes`() {
+        assertThat(ClassFile.descriptorClasses("(ILjava/lang/String;[Lfoo/Bar;)V"))
+            .containsExactly("java/lang/String", "foo/Bar")
+    }
+
+    @Test
+    fun `source map files`() {
+        val smap = """
+            SMAP
+            A.kt
+            Kotlin
+            *S Kotlin
+            *F
+            + 1 A.kt
+            a/A
+            + 2 BA.kt
+            a/BAKt
+            3 C.kt
+            *L
+            1#1,10:1
+            *E
+        """.trimIndent()
+        assertThat(ClassFile.sourceMapFiles(smap)).containsExactlyInAnyOrder("A.kt", "BA.kt", "C.kt")
+    }
+}
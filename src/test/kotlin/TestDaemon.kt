@@ -0,0 +1,140 @@
+import assertk.assertFailure
+import assertk.assertThat
+import assertk.assertions.contains
+import assertk.assertions.isEmpty
+import assertk.assertions.isNotEmpty
+import assertk.assertions.isTrue
+import assertk.assertions.messageContains
+import org.junit.jupiter.api.Test
+import kotlin.concurrent.thread
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.div
+import kotlin.io.path.exists
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.readText
+import kotlin.io.path.writeText
+
+class TestDaemon {
+    private val daemonEnv = arrayOf(
+        *env,
+        "KOTLIN_SCRIPT_DAEMON=1",
+        "KOTLIN_SCRIPT_DAEMON_IDLE=1"
+    )
+    private val daemonDir = cache / v / "daemon"
+
+    private fun writeNameScript(fileName: String, delayMs: Long) {
+        (baseDir / fileName).writeText(
+            """
+            |fun main() {
+            |    Thread.sleep(${delayMs}L)
+            |    println("name=" + System.getProperty("kotlin_script.name"))
+            |}
+            |""".trimMargin()
+        )
+    }
+
+    private fun runInDaemon(logFileName: String, scriptFile: String) =
+        runScript(
+            logFileName,
+            "env", *daemonEnv, "script_file=$scriptFile",
+            zsh, "-xy", "test.kt"
+        )
+
+    private fun awaitDaemonExit() {
+        val deadline = System.currentTimeMillis() + 30_000L
+        while (daemonDir.exists() && daemonDir.listDirectoryEntries("*.port").isNotEmpty()) {
+            check(System.currentTimeMillis() < deadline) { "daemon did not exit" }
+            Thread.sleep(200L)
+        }
+    }
+
+    @Test
+    fun `run in daemon`() {
+        compileOk()
+        writeNameScript("daemon.kt", 0L)
+        assertThat(runInDaemon("test_daemon_compile.out", "daemon.kt"))
+            .contains("name=daemon.kt")
+        assertThat(daemonDir.listDirectoryEntries("*.port")).isNotEmpty()
+        assertThat(runInDaemon("test_daemon_cached.out", "daemon.kt"))
+            .contains("name=daemon.kt")
+        awaitDaemonExit()
+    }
+
+    @Test
+    fun `concurrent sessions keep their script name`() {
+        compileOk()
+        writeNameScript("slow.kt", 3_000L)
+        writeNameScript("fast.kt", 0L)
+        runInDaemon("test_daemon_slow_compile.out", "slow.kt")
+        runInDaemon("test_daemon_fast_compile.out", "fast.kt")
+        var slow = emptyList<String>()
+        val t = thread {
+            slow = runInDaemon("test_daemon_slow.out", "slow.kt")
+        }
+        Thread.sleep(1_000L)
+        assertThat(runInDaemon("test_daemon_fast.out", "fast.kt"))
+            .contains("name=fast.kt")
+        t.join()
+        assertThat(slow).contains("name=slow.kt")
+        awaitDaemonExit()
+    }
+
+    @Test
+    fun `exit status of script`() {
+        compileOk()
+        (baseDir / "exit.kt").writeText(
+            """
+            |import kotlin.system.exitProcess
+            |
+            |fun main() {
+            |    exitProcess(3)
+            |}
+            |""".trimMargin()
+        )
+        assertFailure {
+            runInDaemon("test_daemon_exit.out", "exit.kt")
+        }.messageContains("exit code 3")
+        awaitDaemonExit()
+    }
+
+    @Test
+    fun `stop script of killed client`() {
+        compileOk()
+        (baseDir / "sleep.kt").writeText(
+            """
+            |import java.nio.file.Files
+            |import java.nio.file.Paths
+            |
+            |fun main() {
+            |    println("sleeping")
+            |    try {
+            |        Thread.sleep(Long.MAX_VALUE)
+            |    } catch (_: InterruptedException) {
+            |        Files.createFile(Paths.get("interrupted"))
+            |    }
+            |}
+            |""".trimMargin()
+        )
+        val interrupted = baseDir / "interrupted"
+        interrupted.deleteIfExists()
+        val logFile = baseDir / "test_daemon_killed.out"
+        val p = ProcessBuilder("env", *daemonEnv, "script_file=sleep.kt", zsh, "-xy", "test.kt")
+            .directory(baseDir.toFile())
+            .redirectInput(ProcessBuilder.Redirect.PIPE)
+            .redirectErrorStream(true)
+            .redirectOutput(logFile.toFile())
+            .start()
+        val deadline = System.currentTimeMillis() + 120_000L
+        while (!logFile.readText().lines().contains("sleeping")) {
+            check(p.isAlive && System.currentTimeMillis() < deadline) {
+                "script did not start:\n${logFile.readText()}"
+            }
+            Thread.sleep(200L)
+        }
+        p.destroy()
+        p.waitFor()
+        awaitDaemonExit()
+        assertThat(interrupted.exists()).isTrue()
+        assertThat(daemonDir.listDirectoryEntries("*.port")).isEmpty()
+    }
+}
@@ -0,0 +1,66 @@
+import assertk.assertThat
+import assertk.assertions.containsExactly
+import assertk.assertions.isEqualTo
+import kotlin_script.IncrementalCompiler
+import kotlin_script.Progress
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.net.URLClassLoader
+import java.nio.file.Path
+import javax.tools.ToolProvider
+import kotlin.io.path.*
+
+class TestIncrementalCompiler {
+
+    private class Javac(private val outputDir: Path) : IncrementalCompiler.Compiler {
+        val compiled = mutableListOf<List<String>>()
+
+        override fun compile(classPath: List<Path>, sources: List<String>): Pair<Int, String> {
+            compiled += sources.map { path -> Path(path).name }
+            val args = listOf("-d", outputDir.pathString) +
+                    listOf("-cp", classPath.joinToString(File.pathSeparator)) +
+                    sources
+            val rc = ToolProvider.getSystemJavaCompiler()
+                .run(null, null, null, *args.toTypedArray())
+            return rc to ""
+        }
+    }
+
+    private fun get(outputDir: Path, className: String): Any? =
+        URLClassLoader(arrayOf(outputDir.toUri().toURL()), null).use { cl ->
+            cl.loadClass(className).getMethod("get").invoke(null)
+        }
+
+    @Test
+    fun `changed constant recompiles all sources`(@TempDir dir: Path) {
+        val src = (dir / "src").createDirectories()
+        val outputDir = (dir / "out").createDirectories()
+        val a = src / "A.java"
+        val b = src / "B.java"
+        val c = src / "C.java"
+        a.writeText("public class A { public static final int X = 1; }\n")
+        b.writeText("public class B { public static int get() { return A.X; } }\n")
+        c.writeText("public class C { }\n")
+        val compiler = Javac(outputDir)
+        val ic = IncrementalCompiler(dir / "state", Progress())
+
+        fun sources(checksumOfA: String) = mapOf(
+            a.pathString to checksumOfA,
+            b.pathString to "b",
+            c.pathString to "c",
+        )
+
+        assertThat(ic.compile(sources("a1"), "args", outputDir, compiler).first).isEqualTo(0)
+        assertThat(get(outputDir, "B")).isEqualTo(1)
+
+        a.writeText("public class A { public static final int X = 2; }\n")
+        assertThat(ic.compile(sources("a2"), "args", outputDir, compiler).first).isEqualTo(0)
+        assertThat(compiler.compiled).containsExactly(
+            listOf("A.java", "B.java", "C.java"),
+            listOf("A.java"),
+            listOf("A.java", "B.java", "C.java"),
+        )
+        assertThat(get(outputDir, "B")).isEqualTo(2)
+    }
+}
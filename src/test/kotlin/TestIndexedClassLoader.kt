@@ -0,0 +1,111 @@
+import assertk.assertThat
+import assertk.assertions.isEqualTo
+import assertk.assertions.isNotNull
+import assertk.assertions.isTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.net.URLClassLoader
+import java.nio.file.Path
+import java.util.jar.Attributes
+import java.util.jar.Manifest
+import kotlin.io.path.*
+
+class TestIndexedClassLoader {
+
+    private val text = (0 until 10_000).joinToString("\n") { i -> "line $i" }
+
+    private fun manifest(vararg attributes: Pair<Attributes.Name, String>) = Manifest().apply {
+        mainAttributes[Attributes.Name.MANIFEST_VERSION] = "1.0"
+        attributes.forEach { (name, value) -> mainAttributes[name] = value }
+    }
+
+    private fun indexedClassLoader(cl: URLClassLoader, classPath: List<Path>, indexFile: Path): ClassLoader {
+        val constructor = cl.loadClass("kotlin_script.IndexedClassLoader").getDeclaredConstructor(
+            List::class.java,
+            Path::class.java,
+            Boolean::class.javaPrimitiveType,
+            ClassLoader::class.java
+        )
+        constructor.isAccessible = true
+        return constructor.newInstance(classPath, indexFile, false, null) as ClassLoader
+    }
+
+    @Test
+    fun `follow manifest class path`(@TempDir dir: Path) {
+        val libDir = (dir / "lib").createDirectories()
+        val dep = libDir / "dep.jar"
+        val classes = compileJava(dir, mapOf("dep.Dep" to "package dep; public class Dep { }"))
+        writeJar(
+            dep,
+            mapOf(
+                "dep/Dep.class" to (classes / "dep/Dep.class").readBytes(),
+                "dep/dep.txt" to text.toByteArray()
+            ),
+            manifest(Attributes.Name.IMPLEMENTATION_VERSION to "1.2.3"),
+        )
+        val jar = dir / "script.jar"
+        writeJar(
+            jar,
+            mapOf("script.txt" to "script".toByteArray()),
+            manifest(Attributes.Name.CLASS_PATH to "lib/dep.jar lib/missing.jar"),
+            stored = true
+        )
+        val indexFile = dir / "script.cpindex"
+        launcherClassLoader().use { cl ->
+            // built, then read from the stored index
+            repeat(2) {
+                val icl = indexedClassLoader(cl, listOf(jar), indexFile)
+                val c = icl.loadClass("dep.Dep")
+                assertThat(c.`package`.implementationVersion).isEqualTo("1.2.3")
+                assertThat(icl.getResource("dep/dep.txt")).isNotNull()
+                assertThat(icl.getResourceAsStream("script.txt")!!.use { `in` ->
+                    `in`.readBytes().decodeToString()
+                }).isEqualTo("script")
+            }
+            assertThat(indexFile.isRegularFile()).isTrue()
+        }
+    }
+
+    @Test
+    fun `stream stored and deflated entries`(@TempDir dir: Path) {
+        val stored = dir / "stored.jar"
+        val deflated = dir / "deflated.jar"
+        writeJar(stored, mapOf("a/stored.txt" to text.toByteArray()), manifest(), stored = true)
+        writeJar(deflated, mapOf("a/deflated.txt" to text.toByteArray()), manifest())
+        launcherClassLoader().use { cl ->
+            val icl = indexedClassLoader(cl, listOf(stored, deflated), dir / "index.cpindex")
+            listOf("a/stored.txt", "a/deflated.txt").forEach { name ->
+                val data = icl.getResourceAsStream(name)!!.use { `in` ->
+                    `in`.bufferedReader().readText()
+                }
+                assertThat(data).isEqualTo(text)
+            }
+        }
+    }
+
+    @Test
+    fun `resolve multi-release entries`(@TempDir dir: Path) {
+        val jar = dir / "mr.jar"
+        writeJar(
+            jar,
+            mapOf(
+                "a/v.txt" to "8".toByteArray(),
+                "META-INF/versions/9/a/v.txt" to "9".toByteArray(),
+                "META-INF/versions/9/b/only.txt" to "9".toByteArray(),
+                "META-INF/versions/999/a/v.txt" to "999".toByteArray(),
+            ),
+            manifest(Attributes.Name("Multi-Release") to "true"),
+        )
+        val expected = if (System.getProperty("java.specification.version").startsWith("1.")) "8" else "9"
+        launcherClassLoader().use { cl ->
+            val icl = indexedClassLoader(cl, listOf(jar), dir / "mr.cpindex")
+            assertThat(icl.getResourceAsStream("a/v.txt")!!.use { `in` ->
+                `in`.readBytes().decodeToString()
+            }).isEqualTo(expected)
+            assertThat(icl.getResource("a/v.txt")!!.readBytes().decodeToString()).isEqualTo(expected)
+            if (expected == "9") {
+                assertThat(icl.getResource("b/only.txt")).isNotNull()
+            }
+        }
+    }
+}
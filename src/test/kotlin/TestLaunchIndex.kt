@@ -0,0 +1,106 @@
+import assertk.assertThat
+import assertk.assertions.containsExactly
+import assertk.assertions.isEqualTo
+import assertk.assertions.isNotNull
+import assertk.assertions.isNull
+import kotlin_script.LaunchIndex
+import kotlin_script.hexToBytes
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+import kotlin.io.path.createDirectories
+import kotlin.io.path.createFile
+import kotlin.io.path.div
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
+
+class TestLaunchIndex {
+    private val sha256 = "ab".repeat(32)
+
+    private fun entry(
+        main: String,
+        javaVersion: String = "17",
+        scriptSha256: String = sha256,
+        jar: String = "org/cikit/kotlin_script_cache/test.jar"
+    ) = LaunchIndex.Entry(
+        scriptSha256 = scriptSha256,
+        javaVersion = javaVersion,
+        jar = jar,
+        main = main,
+        classPath = listOf("a/b/c.jar", "d/e/f.jar"),
+        inc = listOf("inc.kt" to "cd".repeat(32))
+    )
+
+    @Test
+    fun `last entry wins`(@TempDir dir: Path) {
+        val index = LaunchIndex(dir)
+        assertThat(index.find(sha256, "17")).isNull()
+        index.update(entry("FirstKt"))
+        index.update(entry("OtherKt", javaVersion = "21"))
+        index.update(entry("SecondKt"))
+        val result = index.find(sha256, "17")
+        assertThat(result).isNotNull()
+        assertThat(result!!.main).isEqualTo("SecondKt")
+        assertThat(result.classPath).containsExactly("a/b/c.jar", "d/e/f.jar")
+        assertThat(result.inc).containsExactly("inc.kt" to "cd".repeat(32))
+        assertThat(index.find(sha256, "21")?.main).isEqualTo("OtherKt")
+    }
+
+    @Test
+    fun `entries are bucketed by sha256`(@TempDir dir: Path) {
+        val index = LaunchIndex(dir)
+        index.update(entry("FirstKt"))
+        index.update(entry("OtherKt", scriptSha256 = "01".repeat(32)))
+        assertThat(dir.listDirectoryEntries().map { f -> f.name }.sorted())
+            .containsExactly("01.index", "ab.index")
+        assertThat(index.find("01".repeat(32), "17")?.main).isEqualTo("OtherKt")
+    }
+
+    @Test
+    fun `compaction keeps live entries`(@TempDir dir: Path) {
+        val index = LaunchIndex(dir)
+        index.update(entry("OtherKt", javaVersion = "21"))
+        repeat(200) { i ->
+            index.update(entry("Main${i}Kt"))
+        }
+        assertThat(index.find(sha256, "17")?.main).isEqualTo("Main199Kt")
+        assertThat(index.find(sha256, "21")?.main).isEqualTo("OtherKt")
+    }
+
+    @Test
+    fun `compaction drops entries of removed jars`(@TempDir dir: Path) {
+        val localRepo = dir / "repo"
+        val jar = "org/cikit/kotlin_script_cache/live.jar"
+        (localRepo / jar).also { f -> f.parent.createDirectories() }.createFile()
+        val index = LaunchIndex(dir / "index", localRepo)
+        index.update(entry("DeadKt", scriptSha256 = "ab".repeat(31) + "00"))
+        repeat(100) { i ->
+            index.update(entry("Main${i}Kt", jar = jar))
+        }
+        assertThat(index.find("ab".repeat(31) + "00", "17")).isNull()
+        assertThat(index.find(sha256, "17")?.main).isEqualTo("Main99Kt")
+    }
+
+    @Test
+    fun `launcher reads the same format`(@TempDir dir: Path) {
+        val index = LaunchIndex(dir)
+        index.update(entry("FirstKt"))
+        index.update(entry("SecondKt"))
+        launcherClassLoader().use { cl ->
+            val find = cl.loadClass("kotlin_script.LaunchIndex").declaredMethod(
+                "find",
+                Path::class.java,
+                ByteArray::class.java,
+                String::class.java
+            )
+            assertThat(find.invoke(null, dir, sha256.hexToBytes(), "21")).isNull()
+            val result = find.invoke(null, dir, sha256.hexToBytes(), "17")!!
+            assertThat(result.field("jar"))
+                .isEqualTo("org/cikit/kotlin_script_cache/test.jar")
+            assertThat(result.field("mainClass")).isEqualTo("SecondKt")
+            assertThat(result.field("classPath"))
+                .isEqualTo(listOf("a/b/c.jar", "d/e/f.jar"))
+            assertThat(result.field("includes")).isEqualTo(listOf("inc.kt"))
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import assertk.assertThat
+import assertk.assertions.containsExactly
+import assertk.assertions.hasSize
+import assertk.assertions.isEmpty
+import assertk.assertions.isEqualTo
+import assertk.assertions.isLessThan
+import assertk.assertions.isNotNull
+import com.sun.net.httpserver.HttpServer
+import kotlin_script.Dependency
+import kotlin_script.LazyDependency
+import kotlin_script.Progress
+import kotlin_script.Resolver
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.lang.reflect.Proxy
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.URL
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import kotlin.io.path.*
+
+class TestLazyDependency {
+    @Test
+    fun `packages of jar`(@TempDir dir: Path) {
+        val jar = dir / "test.jar"
+        ZipOutputStream(jar.outputStream()).use { zout ->
+            listOf(
+                "META-INF/",
+                "META-INF/MANIFEST.MF",
+                "META-INF/services/java.nio.file.spi.FileSystemProvider",
+                "META-INF/versions/9/module-info.class",
+                "module-info.class",
+                "a/b/",
+                "a/b/C.class",
+                "a/b/D.class",
+                "a/E.class",
+                "root.properties",
+            ).forEach { name ->
+                zout.putNextEntry(ZipEntry(name))
+                zout.closeEntry()
+            }
+        }
+        assertThat(LazyDependency.packagesOf(jar))
+            .containsExactly(
+                ".",
+                "META-INF/services/java.nio.file.spi.FileSystemProvider",
+                "a",
+                "a/b"
+            )
+    }
+
+    @Test
+    fun `service lookup only fetches providers`(@TempDir dir: Path) {
+        val service = "META-INF/services/a.Service"
+        val jar = dir / "provider.jar"
+        ZipOutputStream(jar.outputStream()).use { zout ->
+            zout.putNextEntry(ZipEntry(service))
+            zout.write("a.Impl\n".toByteArray())
+            zout.closeEntry()
+        }
+        val sha256 = "ab".repeat(32)
+        launcherClassLoader().use { cl ->
+            val artifactClass = cl.loadClass("kotlin_script.LazyClassLoader\$Artifact")
+            val parse = artifactClass.declaredMethod("parse", String::class.java)
+            val missing = listOf(
+                parse.invoke(null, "a/provider.jar sha256=$sha256 1 $service"),
+                parse.invoke(null, "b/other.jar sha256=$sha256 1 META-INF/services/b.Service")
+            )
+            val fetched = mutableListOf<String>()
+            val fetcherClass = cl.loadClass("kotlin_script.LazyClassLoader\$Fetcher")
+            val fetcher = Proxy.newProxyInstance(cl, arrayOf(fetcherClass)) { _, _, args ->
+                fetched += args[0].field("subPath") as String
+                jar
+            }
+            val constructor = cl.loadClass("kotlin_script.LazyClassLoader").getDeclaredConstructor(
+                Array<URL>::class.java,
+                List::class.java,
+                fetcherClass,
+                ClassLoader::class.java
+            )
+            constructor.isAccessible = true
+            val lazy = constructor.newInstance(emptyArray<URL>(), missing, fetcher, null) as ClassLoader
+            assertThat(lazy.getResources("META-INF/services/c.Service").toList()).isEmpty()
+            assertThat(fetched).isEmpty()
+            assertThat(lazy.getResources(service).toList()).hasSize(1)
+            assertThat(fetched).containsExactly("a/provider.jar")
+        }
+    }
+
+    @Test
+    fun `packages of remote jar`(@TempDir upstream: Path, @TempDir localRepo: Path) {
+        val dep = Dependency("org.example", "lib", "1.0")
+        val jar = upstream / dep.subPath
+        jar.parent.createDirectories()
+        ZipOutputStream(jar.outputStream()).use { zout ->
+            zout.setLevel(0)
+            listOf("a/b/C.class", "a/D.class", "META-INF/services/a.Service").forEach { name ->
+                zout.putNextEntry(ZipEntry(name))
+                zout.write(ByteArray(256 * 1024))
+                zout.closeEntry()
+            }
+        }
+        val data = jar.readBytes()
+        val served = AtomicLong()
+        // serves byte ranges only
+        val server = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+        server.createContext("/") { exchange ->
+            val range = exchange.requestHeaders.getFirst("Range")!!.removePrefix("bytes=")
+            val (start, end) = when {
+                range.startsWith("-") -> maxOf(0, data.size - range.substring(1).toInt()) to data.size - 1
+                else -> range.substringBefore('-').toInt() to range.substringAfter('-').toInt()
+            }
+            exchange.responseHeaders.add("Content-Range", "bytes $start-$end/${data.size}")
+            exchange.sendResponseHeaders(206, (end - start + 1).toLong())
+            exchange.responseBody.use { out -> out.write(data, start, end - start + 1) }
+            served.addAndGet((end - start + 1).toLong())
+        }
+        server.start()
+        try {
+            val resolver = Resolver(
+                mavenRepoUrl = "http://127.0.0.1:${server.address.port}",
+                mavenRepoCache = null,
+                localRepo = localRepo,
+                p = Progress()
+            )
+            val remote = resolver.remoteEntries(dep)
+            assertThat(remote).isNotNull()
+            val (size, names) = remote!!
+            assertThat(size).isEqualTo(data.size.toLong())
+            assertThat(LazyDependency.packagesOf(names.asSequence()))
+                .isEqualTo(LazyDependency.packagesOf(jar))
+            assertThat(served.get()).isLessThan(data.size.toLong())
+        } finally {
+            server.stop(0)
+        }
+    }
+
+    @Test
+    fun `spec`() {
+        val d = LazyDependency("a/b/1/b-1.jar", "ab".repeat(32), 42L, listOf("a", "a/b"))
+        assertThat(d.toSpec()).isEqualTo("a/b/1/b-1.jar sha256=${"ab".repeat(32)} 42 a,a/b")
+    }
+}
@@ -0,0 +1,111 @@
+import assertk.assertThat
+import assertk.assertions.isEqualTo
+import assertk.assertions.isFalse
+import assertk.assertions.isNotNull
+import assertk.assertions.isNull
+import assertk.assertions.isTrue
+import kotlin_script.Dependency
+import kotlin_script.Progress
+import kotlin_script.RepoServer
+import kotlin_script.Resolver
+import kotlin_script.toHex
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.net.HttpURLConnection
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.URL
+import java.nio.file.Path
+import java.security.MessageDigest
+import kotlin.io.path.*
+
+class TestRepoServer {
+    private val subPath = "org/example/lib/1.0/lib-1.0.jar"
+    private val data = "not really a jar".toByteArray()
+
+    private fun withServer(upstream: Path, localRepo: Path, block: (String) -> Unit) {
+        val p = Progress()
+        val resolver = Resolver(
+            mavenRepoUrl = upstream.toUri().toString().removeSuffix("/"),
+            mavenRepoCache = null,
+            localRepo = localRepo,
+            p = p
+        )
+        val server = RepoServer(resolver, localRepo, p)
+        server.start(InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+        try {
+            block("http://127.0.0.1:${server.port}")
+        } finally {
+            server.stop()
+        }
+    }
+
+    private fun get(url: String): Pair<Int, ByteArray?> {
+        val cn = URL(url).openConnection() as HttpURLConnection
+        return try {
+            cn.responseCode to cn.inputStream.use { `in` -> `in`.readBytes() }
+        } catch (_: java.io.IOException) {
+            cn.responseCode to null
+        }
+    }
+
+    private fun publish(upstream: Path, sha256: String) {
+        val f = upstream / subPath
+        f.parent.createDirectories()
+        f.writeBytes(data)
+        (upstream / "$subPath.sha256").writeText("$sha256  lib-1.0.jar\n")
+    }
+
+    @Test
+    fun `fetch through and cache`(@TempDir upstream: Path, @TempDir localRepo: Path) {
+        publish(upstream, MessageDigest.getInstance("SHA-256").digest(data).toHex())
+        withServer(upstream, localRepo) { url ->
+            val (rc, body) = get("$url/$subPath")
+            assertThat(rc).isEqualTo(200)
+            assertThat(body?.toList()).isEqualTo(data.toList())
+            assertThat((localRepo / subPath).isRegularFile()).isTrue()
+            // served from the local repository once cached
+            (upstream / subPath).deleteExisting()
+            assertThat(get("$url/$subPath").first).isEqualTo(200)
+            assertThat(get("$url/org/example/lib/1.0/lib-1.0-sources.jar").first)
+                .isEqualTo(404)
+        }
+    }
+
+    @Test
+    fun `reject checksum mismatch`(@TempDir upstream: Path, @TempDir localRepo: Path) {
+        publish(upstream, "00".repeat(32))
+        withServer(upstream, localRepo) { url ->
+            assertThat(get("$url/$subPath").first).isEqualTo(502)
+            assertThat((localRepo / subPath).exists()).isFalse()
+        }
+    }
+
+    @Test
+    fun `reject unverified artifacts`(@TempDir upstream: Path, @TempDir localRepo: Path) {
+        val f = upstream / subPath
+        f.parent.createDirectories()
+        f.writeBytes(data)
+        withServer(upstream, localRepo) { url ->
+            assertThat(get("$url/$subPath").first).isEqualTo(502)
+            assertThat((localRepo / subPath).exists()).isFalse()
+        }
+    }
+
+    @Test
+    fun `reject invalid paths`(@TempDir upstream: Path, @TempDir localRepo: Path) {
+        withServer(upstream, localRepo) { url ->
+            assertThat(get("$url/org/example/../../../etc/passwd").first).isEqualTo(400)
+            assertThat(get("$url/org/cikit/kotlin_script_cache/1.0/x-1.0.jar").first)
+                .isEqualTo(400)
+        }
+    }
+
+    @Test
+    fun `parse sub path`() {
+        val dep = Dependency("org.example", "lib", "1.0", classifier = "sources", type = "tar.gz")
+        assertThat(RepoServer.parseSubPath(dep.subPath)).isEqualTo(dep)
+        assertThat(RepoServer.parseSubPath("org/example/lib/1.0/maven-metadata.xml")).isNull()
+        assertThat(RepoServer.parseSubPath(subPath)).isNotNull()
+    }
+}
@@ -0,0 +1,119 @@
+import assertk.assertThat
+import assertk.assertions.containsExactlyInAnyOrder
+import assertk.assertions.isEqualTo
+import kotlin_script.Shrinker
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+import java.util.zip.ZipFile
+import kotlin.io.path.*
+
+class TestShrinker {
+    interface Service
+
+    class Used
+
+    class Unused
+
+    class Kept
+
+    class ServiceImpl : Service
+
+    class Main {
+        fun run(): Any = listOf(Used(), Service::class.java)
+    }
+
+    private fun entry(c: Class<*>): Pair<String, ByteArray> {
+        val resource = c.name.replace('.', '/') + ".class"
+        return resource to c.classLoader.getResourceAsStream(resource)!!.use { `in` ->
+            `in`.readBytes()
+        }
+    }
+
+    private fun names(jar: Path) = ZipFile(jar.toFile()).use { zf ->
+        zf.entries().asSequence().map { e -> e.name }.toList()
+    }
+
+    @Test
+    fun `keep reachable classes`(@TempDir dir: Path) {
+        val scriptJar = dir / "script.jar"
+        writeJar(scriptJar, mapOf(entry(Main::class.java)))
+        val depJar = dir / "dep.jar"
+        writeJar(
+            depJar,
+            mapOf(
+                entry(Service::class.java),
+                entry(Used::class.java),
+                entry(Unused::class.java),
+                entry(Kept::class.java),
+                entry(ServiceImpl::class.java),
+                "META-INF/MANIFEST.MF" to "Manifest-Version: 1.0\n".toByteArray(),
+                "META-INF/services/${Service::class.java.name}" to
+                        "${ServiceImpl::class.java.name}\n".toByteArray(),
+                "dep.properties" to "a=b\n".toByteArray(),
+            )
+        )
+        val output = dir / "runtime.jar"
+        Shrinker(scriptJar, listOf(depJar), listOf(Kept::class.java.name))
+            .shrink(output, stored = false)
+        assertThat(names(output)).containsExactlyInAnyOrder(
+            entry(Service::class.java).first,
+            entry(Used::class.java).first,
+            entry(Kept::class.java).first,
+            entry(ServiceImpl::class.java).first,
+            "META-INF/services/${Service::class.java.name}",
+            "dep.properties",
+        )
+        val services = ZipFile(output.toFile()).use { zf ->
+            zf.getInputStream(zf.getEntry("META-INF/services/${Service::class.java.name}"))
+                .use { `in` -> String(`in`.readBytes()) }
+        }
+        assertThat(services).isEqualTo("${ServiceImpl::class.java.name}\n")
+    }
+
+    @Test
+    fun `keep classes named by annotations and signatures`(@TempDir dir: Path) {
+        val dep = listOf(
+            "ByClass", "ByNested", "ByField", "ByParameter", "ByGeneric", "Unused"
+        ).associate { name -> "dep.$name" to "package dep; public class $name { }" }
+        val classes = compileJava(
+            dir,
+            dep + mapOf(
+                "dep.Marker" to """
+                    package dep;
+                    @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
+                    public @interface Marker { Class<?> value(); Level level(); Nested[] nested(); }
+                """.trimIndent(),
+                "dep.Nested" to "package dep; public @interface Nested { Class<?> value(); }",
+                "dep.Level" to "package dep; public enum Level { LOW }",
+                "dep.Tagged" to "package dep; public @interface Tagged { ByEnum value(); }",
+                "dep.ByEnum" to "package dep; public enum ByEnum { A }",
+                "script.Annotated" to """
+                    package script;
+                    import dep.*;
+                    @Marker(value = ByClass.class, level = Level.LOW, nested = @Nested(ByNested.class))
+                    public class Annotated {
+                        @Nested(ByField.class) @Tagged(ByEnum.A) public int field;
+                        public java.util.List<ByGeneric> generic() { return null; }
+                        public void run(@Nested(ByParameter.class) int x) { }
+                    }
+                """.trimIndent(),
+            )
+        )
+        fun entry(className: String): Pair<String, ByteArray> {
+            val name = className.replace('.', '/') + ".class"
+            return name to (classes / name).readBytes()
+        }
+        val scriptJar = dir / "script.jar"
+        writeJar(scriptJar, mapOf(entry("script.Annotated")))
+        val depJar = dir / "dep.jar"
+        val depClasses = (classes / "dep").listDirectoryEntries("*.class")
+            .map { f -> "dep." + f.nameWithoutExtension }
+        writeJar(depJar, depClasses.associate { className -> entry(className) })
+        val output = dir / "runtime.jar"
+        Shrinker(scriptJar, listOf(depJar), emptyList()).shrink(output, stored = false)
+        assertThat(names(output)).containsExactlyInAnyOrder(
+            *(depClasses - "dep.Unused").map { className -> entry(className).first }.toTypedArray()
+        )
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.File
+import java.net.URLClassLoader
+import java.nio.file.Path
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import javax.tools.ToolProvider
+import kotlin.io.path.*
+
+/**
+ * Loads the java launcher classes, which share their package names with
+ * the main classes, in an isolated class loader. The class path is set by
+ * the gradle test task and by `run_tests.kt`.
+ */
+fun launcherClassLoader(): URLClassLoader {
+    val classPath = System.getProperty("kotlin_script.launcher.classpath")
+        ?: error("kotlin_script.launcher.classpath is not set")
+    val urls = classPath.split(File.pathSeparatorChar).map { f ->
+        Path(f).toUri().toURL()
+    }
+    return URLClassLoader(urls.toTypedArray(), ClassLoader.getSystemClassLoader().parent)
+}
+
+fun Class<*>.declaredMethod(name: String, vararg parameterTypes: Class<*>) =
+    getDeclaredMethod(name, *parameterTypes).apply { isAccessible = true }
+
+fun Any.field(name: String): Any? = javaClass.getDeclaredField(name).let { f ->
+    f.isAccessible = true
+    f.get(this)
+}
+
+/**
+ * Compiles java [sources] (by class name) into `classes` below [dir] and
+ * returns that directory.
+ */
+fun compileJava(dir: Path, sources: Map<String, String>): Path {
+    val classes = dir / "classes"
+    val files = sources.map { (className, source) ->
+        val src = dir / "src" / className.replace('.', '/').plus(".java")
+        src.parent.createDirectories()
+        src.writeText(source)
+        src.pathString
+    }
+    val rc = ToolProvider.getSystemJavaCompiler()
+        .run(null, null, null, "-d", classes.pathString, *files.toTypedArray())
+    check(rc == 0) { "javac failed with exit code $rc" }
+    return classes
+}
+
+/**
+ * Writes [entries] to [jar], after [manifest] if there is one.
+ */
+fun writeJar(jar: Path, entries: Map<String, ByteArray>, manifest: Manifest? = null, stored: Boolean = false) {
+    val out = jar.outputStream()
+    val zout = if (manifest == null) ZipOutputStream(out) else JarOutputStream(out, manifest)
+    zout.use {
+        entries.forEach { (name, data) ->
+            val entry = ZipEntry(name)
+            if (stored) {
+                entry.method = ZipEntry.STORED
+                entry.size = data.size.toLong()
+                entry.crc = CRC32().also { crc -> crc.update(data) }.value
+            }
+            zout.putNextEntry(entry)
+            zout.write(data)
+            zout.closeEntry()
+        }
+    }
+}
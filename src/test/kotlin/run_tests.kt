@@ -51,13 +51,44 @@ fi
 ///DEP=org.junit.jupiter:junit-jupiter-engine:5.14.0
 ///DEP=org.junit.platform:junit-platform-engine:1.14.0
 
+///DEP=com.github.ajalt.mordant:mordant-jvm:3.0.0
+///DEP=com.github.ajalt.mordant:mordant-core-jvm:3.0.0
+///DEP=com.github.ajalt.colormath:colormath-jvm:3.6.0
+
 ///INC=TestBasic.kt
 ///INC=TestCachePath.kt
 ///INC=TestNoFetchTool.kt
 ///INC=TestInvalidHome.kt
+///INC=TestDaemon.kt
+///INC=TestIndexedClassLoader.kt
+///INC=launcher.kt
+
+///INC=TestLaunchIndex.kt
+///INC=../main/kotlin/kotlin_script/LaunchIndex.kt
+///INC=../main/kotlin/kotlin_script/RecordLog.kt
+
+///INC=TestClassFile.kt
+///INC=TestIncrementalCompiler.kt
+///INC=../main/kotlin/kotlin_script/ClassFile.kt
+///INC=../main/kotlin/kotlin_script/IncrementalCompiler.kt
+
+///INC=TestShrinker.kt
+///INC=../main/kotlin/kotlin_script/Shrinker.kt
+
+///INC=TestLazyDependency.kt
+///INC=../main/kotlin/kotlin_script/LazyDependency.kt
+
+///INC=TestRepoServer.kt
+///INC=../main/kotlin/kotlin_script/RepoServer.kt
+///INC=../main/kotlin/kotlin_script/Resolver.kt
+///INC=../main/kotlin/kotlin_script/model.kt
+///INC=../main/kotlin/kotlin_script/StatCache.kt
+///INC=../main/kotlin/kotlin_script/FileLocks.kt
+///INC=../main/kotlin/kotlin_script/Progress.kt
 
 import org.apache.bcel.classfile.ClassParser
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
 import java.io.IOException
 import java.lang.reflect.Method
 import java.lang.reflect.Modifier
@@ -352,13 +383,22 @@ var rc = 0
 
 private fun test(instance: Any?, method: Method, name: String) {
     println("--> $name")
+    val tempDirs = mutableListOf<Path>()
     try {
         setup()
-        method.invoke(instance)
+        val args = method.parameters.map { p ->
+            require(p.type == Path::class.java && p.isAnnotationPresent(TempDir::class.java)) {
+                "unsupported test parameter: $p"
+            }
+            Files.createTempDirectory("junit").also { dir -> tempDirs += dir }
+        }
+        method.invoke(instance, *args.toTypedArray())
     } catch (ex: Exception) {
         rc = 1
         println("**** fail **** $ex")
         ex.printStackTrace()
+    } finally {
+        tempDirs.forEach { dir -> cleanup(dir) }
     }
     System.out.flush()
     System.err.flush()
@@ -412,6 +452,10 @@ private fun ClassLoader.findClasses(
 }
 
 fun main(args: Array<String>) {
+    System.setProperty(
+        "kotlin_script.launcher.classpath",
+        (libsDir / "kotlin_script-$v.sh").absolutePathString()
+    )
     setupInitialRepo()
     val classLoader = Thread.currentThread().contextClassLoader
     val testClasses = classLoader.findClasses { className, fileName ->